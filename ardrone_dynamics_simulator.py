@@ -0,0 +1,317 @@
+#!/usr/bin/python
+"""
+ARDrone stand-in with simple flight dynamics.
+
+Listens for AT commands on the commands port, integrates a first order model of the
+drone vertical speed, yaw rate and attitude, and streams demo navdata to whoever pings
+the navdata port. Use it to verify closed-loop control (hold mode) and command timing
+without a real drone: run it on a host reachable as Ardrone.ARDRONE_IP.
+
+It also serves the drone configuration on the control TCP port: after an AT*CTRL
+config-get it writes the configuration (read from --config, updated by the CONFIG
+commands received) to the connected clients, like the drone does. --config-loss drops
+that fraction of the CONFIG commands, as a lossy link would.
+
+With --bootstrap it starts like a freshly booted drone: navdata packets only carry the
+state (NAVDATA_BOOTSTRAP set, no demo option) until general:navdata_demo is written,
+even though the configuration served says navdata_demo = TRUE.
+
+Every few seconds it prints the inter-arrival period and jitter of each AT command type.
+With --log it writes a CSV trace of the simulated state and the last PCMD received.
+"""
+from __future__ import print_function
+
+import argparse
+import math
+import os
+import random
+import re
+import socket
+import struct
+import sys
+import threading
+import time
+
+NAVDATA_HEADER = 0x55667788
+STATE_FLY = 1 << 0
+STATE_NAVDATA_DEMO = 1 << 10
+STATE_NAVDATA_BOOTSTRAP = 1 << 11
+STATE_COMMAND_ACK = 1 << 6
+
+DEMO_OPTION_SIZE = 148
+CHECKSUM_OPTION_ID = 0xFFFF
+
+MAX_VERTICAL_SPEED = 70.0  # cm/s at gaz = 1
+MAX_YAW_RATE = 100.0       # deg/s at yaw = 1
+MAX_ANGLE = 12.0           # deg at roll/pitch = 1
+TAKEOFF_ALTITUDE = 100.0   # cm
+VERTICAL_TAU = 0.3         # s
+YAW_TAU = 0.2              # s
+ANGLE_TAU = 0.15           # s
+PCMD_WATCHDOG = 2.0        # s without PCMD before the drone hovers
+
+CFG_GET_CONTROL_MODE = 4
+ACK_CONTROL_MODE = 5
+DEFAULT_CONFIG = os.path.join(os.path.dirname(os.path.abspath(__file__)), 'ardrone_config_sample.txt')
+
+AT_COMMAND = re.compile(r'AT\*([A-Z_]+)=(\d+)(,[^\r]*)?\r')
+
+
+def int_bits_to_float(value):
+    return struct.unpack('<f', struct.pack('<i', int(value)))[0]
+
+
+class CommandTiming(object):
+    """Inter-arrival statistics for one AT command type"""
+
+    def __init__(self):
+        self.last = None
+        self.periods = []
+
+    def record(self, now):
+        if self.last is not None:
+            self.periods.append(now - self.last)
+        self.last = now
+
+    def report(self):
+        if not self.periods:
+            return 'n/a'
+        n = len(self.periods)
+        mean = sum(self.periods) / n
+        jitter = math.sqrt(sum((p - mean) ** 2 for p in self.periods) / n)
+        worst = max(abs(p - mean) for p in self.periods)
+        self.periods = []
+        return 'n=%d period=%.2fms jitter(sd)=%.3fms jitter(max)=%.3fms' % (
+            n, mean * 1e3, jitter * 1e3, worst * 1e3)
+
+
+def load_config(path):
+    config = []
+    with open(path) as config_file:
+        for line in config_file:
+            key, separator, value = line.partition('=')
+            if separator:
+                config.append([key.strip(), value.strip()])
+    return config
+
+
+class Drone(object):
+    def __init__(self, config, config_loss=0.0, bootstrap=False):
+        self.lock = threading.Lock()
+        self.config = config
+        self.config_loss = config_loss
+        self.bootstrap = bootstrap
+        self.control_clients = []
+        self.flying = False
+        self.takeoff = False
+        self.taking_off = False
+        self.altitude = 0.0
+        self.vz = 0.0
+        self.yaw = 0.0
+        self.yaw_rate = 0.0
+        self.roll = 0.0
+        self.pitch = 0.0
+        self.battery = 100.0
+        self.demo = True
+        self.ack = False
+        self.pcmd = (0.0, 0.0, 0.0, 0.0)
+        self.last_pcmd = 0.0
+        self.timing = {}
+
+    def on_command(self, command, params, now):
+        with self.lock:
+            self.timing.setdefault(command, CommandTiming()).record(now)
+            if command == 'REF':
+                value = int(params[0])
+                self.takeoff = bool(value & 0x200)
+            elif command == 'PCMD':
+                flag = int(params[0])
+                values = [int_bits_to_float(v) for v in params[1:5]]
+                self.pcmd = tuple(values) if flag & 1 else (0.0, 0.0, 0.0, 0.0)
+                self.last_pcmd = now
+            elif command == 'CONFIG':
+                key, value = [p.strip('"') for p in ','.join(params).split('","')]
+                if random.random() < self.config_loss:
+                    print('CONFIG %s = %s lost' % (key, value))
+                    return
+                if key == 'general:navdata_demo':
+                    self.demo = value.upper() == 'TRUE'
+                    self.bootstrap = False
+                self.set_config(key, value)
+                self.ack = True
+                print('CONFIG %s = %s' % (key, value))
+            elif command == 'CTRL':
+                mode = int(params[0])
+                if mode == ACK_CONTROL_MODE:
+                    self.ack = False
+                elif mode == CFG_GET_CONTROL_MODE:
+                    self.send_config()
+
+    def set_config(self, key, value):
+        for entry in self.config:
+            if entry[0] == key:
+                entry[1] = value
+                return
+        self.config.append([key, value])
+
+    def send_config(self):
+        dump = ''.join('%s = %s\n' % (key, value) for key, value in self.config)
+        for client in list(self.control_clients):
+            try:
+                client.sendall(dump.encode('ascii') + b'\0')
+            except socket.error:
+                self.control_clients.remove(client)
+        print('Sent configuration (%d values) to %d control clients' % (
+            len(self.config), len(self.control_clients)))
+
+    def step(self, dt, now):
+        with self.lock:
+            roll_cmd, pitch_cmd, gaz, yaw_cmd = self.pcmd
+            if now - self.last_pcmd > PCMD_WATCHDOG:
+                roll_cmd = pitch_cmd = gaz = yaw_cmd = 0.0
+
+            if self.takeoff and not self.flying:
+                self.flying = self.taking_off = True
+                self.altitude = max(self.altitude, 1.0)
+            if not self.flying:
+                return
+
+            if not self.takeoff:
+                target_vz = -MAX_VERTICAL_SPEED
+            elif self.taking_off:
+                # The drone climbs to its takeoff altitude on its own, ignoring PCMDs
+                target_vz = MAX_VERTICAL_SPEED
+                self.taking_off = self.altitude < TAKEOFF_ALTITUDE
+            else:
+                target_vz = gaz * MAX_VERTICAL_SPEED
+
+            self.vz += (target_vz - self.vz) * min(1.0, dt / VERTICAL_TAU)
+            self.altitude += self.vz * dt
+            if self.altitude <= 0.0:
+                self.altitude = self.vz = 0.0
+                self.flying = self.takeoff
+                return
+
+            self.yaw_rate += (yaw_cmd * MAX_YAW_RATE - self.yaw_rate) * min(1.0, dt / YAW_TAU)
+            self.yaw = (self.yaw + self.yaw_rate * dt + 180.0) % 360.0 - 180.0
+            self.roll += (roll_cmd * MAX_ANGLE - self.roll) * min(1.0, dt / ANGLE_TAU)
+            self.pitch += (pitch_cmd * MAX_ANGLE - self.pitch) * min(1.0, dt / ANGLE_TAU)
+            self.battery = max(0.0, self.battery - dt * 0.01)
+
+    def navdata(self, sequence):
+        with self.lock:
+            state = STATE_FLY if self.flying else 0
+            if self.demo:
+                state |= STATE_NAVDATA_DEMO
+            if self.ack:
+                state |= STATE_COMMAND_ACK
+            if self.bootstrap:
+                state |= STATE_NAVDATA_BOOTSTRAP
+            packet = struct.pack('<IIII', NAVDATA_HEADER, state, sequence, 0)
+            # Only the state until navdata_demo is written
+            if not self.bootstrap:
+                fly_state = 3 if self.flying else 2
+                demo = struct.pack('<HHhhIfffifffI', 0, DEMO_OPTION_SIZE,
+                                   fly_state, 0, int(self.battery),
+                                   self.pitch * 1000.0, self.roll * 1000.0, self.yaw * 1000.0,
+                                   int(self.altitude), 0.0, 0.0, self.vz * 10.0, 0)
+                packet += demo + b'\0' * (DEMO_OPTION_SIZE - len(demo))
+        checksum = sum(bytearray(packet)) & 0xFFFFFFFF
+        return packet + struct.pack('<HHI', CHECKSUM_OPTION_ID, 8, checksum)
+
+
+def receive_commands(drone, sock):
+    while True:
+        data, _ = sock.recvfrom(4096)
+        now = time.time()
+        for match in AT_COMMAND.finditer(data.decode('ascii', 'replace')):
+            params = match.group(3)
+            params = params[1:].split(',') if params else []
+            drone.on_command(match.group(1), params, now)
+
+
+def accept_control_clients(drone, server):
+    while True:
+        client, _ = server.accept()
+        with drone.lock:
+            drone.control_clients.append(client)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.strip().splitlines()[0])
+    parser.add_argument('--host', default='0.0.0.0')
+    parser.add_argument('--commands-port', type=int, default=5556)
+    parser.add_argument('--navdata-port', type=int, default=5554)
+    parser.add_argument('--control-port', type=int, default=5559)
+    parser.add_argument('--config', default=DEFAULT_CONFIG, help='configuration served on the control port')
+    parser.add_argument('--report-every', type=float, default=5.0, help='seconds')
+    parser.add_argument('--log', help='CSV file to write the simulated state to')
+    parser.add_argument('--config-loss', type=float, default=0.0, help='fraction of CONFIG commands dropped')
+    parser.add_argument('--bootstrap', action='store_true', help='start in navdata bootstrap mode')
+    args = parser.parse_args()
+
+    drone = Drone(load_config(args.config), args.config_loss, args.bootstrap)
+
+    commands = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    commands.bind((args.host, args.commands_port))
+    thread = threading.Thread(target=receive_commands, args=(drone, commands))
+    thread.daemon = True
+    thread.start()
+
+    control = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    control.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+    control.bind((args.host, args.control_port))
+    control.listen(5)
+    thread = threading.Thread(target=accept_control_clients, args=(drone, control))
+    thread.daemon = True
+    thread.start()
+
+    navdata = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    navdata.bind((args.host, args.navdata_port))
+    navdata.setblocking(False)
+    print('Commands on port %s, navdata on port %s, control on port %s' % (
+        args.commands_port, args.navdata_port, args.control_port))
+
+    log = open(args.log, 'w') if args.log else None
+    if log:
+        log.write('time,altitude,vz,yaw,yaw_rate,roll,pitch,cmd_roll,cmd_pitch,cmd_gaz,cmd_yaw\n')
+
+    client = None
+    sequence = 0
+    dt = 1.0 / 200
+    last = start = last_navdata = last_report = time.time()
+    while True:
+        time.sleep(dt)
+        now = time.time()
+        drone.step(now - last, now)
+        last = now
+
+        try:
+            while True:
+                _, client = navdata.recvfrom(64)
+        except socket.error:
+            pass
+
+        period = 1.0 / 15 if drone.demo else 1.0 / 200
+        if client and now - last_navdata >= period:
+            sequence += 1
+            navdata.sendto(drone.navdata(sequence), client)
+            last_navdata = now
+
+        if log:
+            with drone.lock:
+                log.write('%.4f,%.2f,%.2f,%.2f,%.2f,%.2f,%.2f,%.3f,%.3f,%.3f,%.3f\n' % (
+                    (now - start, drone.altitude, drone.vz, drone.yaw, drone.yaw_rate,
+                     drone.roll, drone.pitch) + drone.pcmd))
+
+        if now - last_report >= args.report_every:
+            with drone.lock:
+                print('alt=%.1fcm yaw=%.1fdeg flying=%s' % (drone.altitude, drone.yaw, drone.flying))
+                for command in sorted(drone.timing):
+                    print('  AT*%s %s' % (command, drone.timing[command].report()))
+            sys.stdout.flush()
+            last_report = now
+
+
+if __name__ == '__main__':
+    main()
@@ -20,6 +20,10 @@ import android.util.Log;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Represents the ARDrone quadcopter and includes methods (commands) to fly it
@@ -45,28 +49,96 @@ public class Ardrone {
     public static final String ARDRONE_IP = "192.168.1.1";
     private static final Integer COMMANDS_PORT = 5556;
 
+    // Null until connect() resolves it. Commands sent before then are buffered
     private InetAddress ardroneInetAddress;
+    private final List<String[]> pendingCommands = new ArrayList<String[]>();
+    private boolean destroyed = false;
 
-    // ARDrone navdata
-    Navdata navdata;
+    // Drone configuration. CONFIGs are buffered until it is loaded, then only changes are sent
+    final ConfigCache configCache;
+    private boolean configCacheLoaded = false;
+    private final Map<String, String> pendingConfigs = new LinkedHashMap<String, String>();
+
+    private final StartupTracker startupTracker;
+
+    // ARDrone navdata, null until connect() starts it
+    volatile Navdata navdata;
+    final NavdataProfileManager navdataProfileManager;
+
+    // Altitude and heading hold, null while the drone is flown open-loop
+    private volatile FlightController flightController;
+
+    // Told the dispatch latency of every PCMD, may be null
+    private volatile UdpPacketSenderTask.OnSentListener commandSentListener;
+
+    // Set while the MissionScheduler flies the drone, pilot and hold mode commands are held back
+    private volatile boolean missionControl = false;
 
     private static int seq = 1; // The Sequence Number for commands
 
-    public Ardrone() {
+    /**
+     * Creates the Ardrone without touching the network, call connect() to start talking
+     * to the drone. Commands issued in the meantime are sent once connected.
+     */
+    public Ardrone(StartupTracker startupTracker) {
         seq = 1;
+        this.startupTracker = startupTracker;
+        configCache = new ConfigCache(this);
+        navdataProfileManager = new NavdataProfileManager(this);
+        // The flight state is always needed; other consumers subscribe for more
+        navdataProfileManager.subscribe(TAG, Navdata.Option.DEMO.mask(), false);
+        setConfig("video:video_on_usb", "TRUE");
+    }
+
+    /**
+     * Resolves the drone address, flushes the buffered commands, starts reading navdata
+     * and loads the drone configuration. Blocks on the network, so call it off the UI thread.
+     */
+    public void connect(){
+        InetAddress address;
         try {
-            ardroneInetAddress = InetAddress.getByName(ARDRONE_IP);
-            setConfig("general:navdata_demo", "TRUE");
-            setConfig("video:video_on_usb", "TRUE");
-            navdata = new Navdata();
+            address = InetAddress.getByName(ARDRONE_IP);
         } catch (UnknownHostException e) {
             Log.e(TAG, "Error when initializing Ardrone InetAddress", e);
+            return;
+        }
+
+        synchronized (this){
+            if (destroyed) return;
+            ardroneInetAddress = address;
+            for (String[] command : pendingCommands){
+                sendCommand(command[0], command[1]);
+            }
+            pendingCommands.clear();
+        }
+        startupTracker.markReady(StartupTracker.Stage.NETWORK);
+
+        synchronized (this){
+            if (destroyed) return;
+            navdata = new Navdata(navdataProfileManager, configCache, startupTracker);
+        }
+        startupTracker.markReady(StartupTracker.Stage.NAVDATA);
+
+        // Without the configuration every CONFIG is sent, as if nothing was cached
+        if (!configCache.load(address)) Log.w(TAG, "Drone configuration not loaded");
+
+        synchronized (this){
+            if (destroyed) return;
+            configCacheLoaded = true;
+            for (Map.Entry<String, String> config : pendingConfigs.entrySet()){
+                setConfig(config.getKey(), config.getValue());
+            }
+            pendingConfigs.clear();
         }
     }
 
     public void destroy(){
+        synchronized (this){
+            destroyed = true;
+        }
+        setHoldMode(false);
         land();
-        navdata.destroy();
+        if (navdata != null) navdata.destroy();
     }
 
     public void takeoff(){
@@ -102,17 +174,126 @@ public class Ardrone {
     }
 
     public void setConfig(String key, String value){
+        synchronized (this){
+            if (!configCacheLoaded){
+                pendingConfigs.remove(key); // Only the latest value, in the latest order
+                pendingConfigs.put(key, value);
+                return;
+            }
+        }
+
+        if (!configCache.needsWrite(key, value)){
+            if(D) Log.d(TAG, "Skipping CONFIG " + key + ", the drone already has " + value);
+            return;
+        }
+        configCache.write(key, value);
+    }
+
+    /**
+     * Writes the CONFIG even if the cache says the drone has it, for settings the drone
+     * reports as lost (e.g. navdata bootstrap after a reboot). Does not wait for the
+     * configuration to be loaded either.
+     */
+    void forceConfig(String key, String value){
+        if (configCache.isPending(key, value)) return;
+        if(D) Log.d(TAG, "Forcing CONFIG " + key + " = " + value);
+        configCache.write(key, value);
+    }
+
+    /**
+     * Sends an AT*CONFIG right away, the ConfigCache calls it when the write's turn comes
+     */
+    void sendConfig(String key, String value){
         sendCommand("CONFIG", "," + '"' + key + '"' + "," + '"' + value + '"' );
     }
 
+    /**
+     * Sends an AT*CTRL, e.g. to request the configuration or acknowledge a CONFIG
+     */
+    void sendControl(int mode){
+        sendCommand("CTRL", "," + mode + ",0");
+    }
+
     public void hover(){
         sendCommand("PCMD", ",0,0,0,0,0");
     }
 
     /**
-     * Gets sensor data from Google Glass and transforms it to ARDrone flying data
+     * Keeps the communication watchdog from tripping while no PCMD can be sent
+     */
+    void resetWatchdog(){
+        sendCommand("COMWDG", "");
+    }
+
+    /**
+     * Turns the closed-loop altitude and heading hold on or off
+     * @return whether hold mode is on. It cannot be turned on before navdata is started.
+     */
+    public boolean setHoldMode(boolean on){
+        synchronized (this){
+            if (on && navdata == null) return false;
+            if (on && flightController == null){
+                flightController = new FlightController(this, navdata);
+                flightController.start();
+            }
+            else if (!on && flightController != null){
+                flightController.cancel();
+                Log.i(TAG, "Hold mode loop timing. " + flightController.getTimingReport());
+                flightController = null;
+            }
+        }
+
+        // Outside of the lock: the profile manager sends commands from the navdata thread too
+        if (on){
+            navdataProfileManager.subscribe(FlightController.class.getSimpleName(),
+                    Navdata.Option.DEMO.mask(), true);
+        }
+        else{
+            navdataProfileManager.unsubscribe(FlightController.class.getSimpleName());
+        }
+        return on;
+    }
+
+    public synchronized boolean isInHoldMode(){
+        return flightController != null;
+    }
+
+    void setMissionControl(boolean on){
+        missionControl = on;
+    }
+
+    boolean isUnderMissionControl(){
+        return missionControl;
+    }
+
+    /**
+     * @param listener told how long each PCMD waited before leaving the device, or null
      */
+    public void setCommandSentListener(UdpPacketSenderTask.OnSentListener listener){
+        commandSentListener = listener;
+    }
+
+    /**
+     * @return whether move() turns this head pose into a hover (inside all the dead zones)
+     */
+    static boolean isHoverPose(float roll, float pitch, float yawSpeed){
+        return Math.abs(roll) <= ROLL_THRESHOLD && Math.abs(pitch) <= PITCH_THRESHOLD
+                && Math.abs(yawSpeed) <= YAW_SPEED_THRESHOLD;
+    }
+
     public void move(float roll, float pitch, float pitchSpeed, float yawSpeed, boolean isInElevationMode){
+        move(roll, pitch, pitchSpeed, yawSpeed, 0f, isInElevationMode);
+    }
+
+    /**
+     * Gets sensor data from Google Glass and transforms it to ARDrone flying data.
+     * In hold mode the data becomes the input of the FlightController instead:
+     * head pitch in elevation mode moves the target altitude and heading the target yaw.
+     */
+    public void move(float roll, float pitch, float pitchSpeed, float yawSpeed, float heading,
+                     boolean isInElevationMode){
+        if (missionControl) return;
+
         float droneRoll, dronePitch, droneVerticalSpeed, droneYaw;
 
         droneRoll = dronePitch = droneVerticalSpeed = droneYaw = 0f;
@@ -146,6 +327,12 @@ public class Ardrone {
             droneYaw = (yawSpeed - sgn(yawSpeed)*YAW_SPEED_THRESHOLD);// / YAW_MAX_VALUE;
         }
 
+        FlightController controller = flightController;
+        if (controller != null){
+            controller.setPilotInput(droneRoll, dronePitch, droneVerticalSpeed, heading);
+            return;
+        }
+
         atPcmd(droneRoll, dronePitch, droneVerticalSpeed, droneYaw);
     }
 
@@ -153,7 +340,7 @@ public class Ardrone {
         animate(Animation.FLIP_LEFT);
     }
 
-    private void atPcmd(float roll, float pitch, float verticalSpeed, float yaw){
+    void atPcmd(float roll, float pitch, float verticalSpeed, float yaw){
         if (roll==0f && pitch==0f && verticalSpeed==0f && yaw==0f){
             hover();
         }
@@ -191,14 +378,34 @@ public class Ardrone {
     // Animation AT command example : AT*CONFIG=seq#,"control:flight_anim","3,2"
     // The parameter is a string containing the animation number/code and its duration timeout,
     // separated with a comma.
-    private void animate(Animation animation){
+    void animate(Animation animation){
         int animationCode = animation.ordinal();
         setConfig("control:flight_anim", animationCode + "," + AnimationTimeouts[animationCode]);
     }
 
-    private void sendCommand(String command, String params){
+    // Synchronized because commands are sent from both the UI and the FlightController threads
+    private synchronized void sendCommand(String command, String params){
+        if (ardroneInetAddress == null){
+            // Not connected yet. Only the latest PCMD matters, older ones would be stale
+            if (command.equals("PCMD")){
+                for (int i = pendingCommands.size() - 1; i >= 0; i--){
+                    if (pendingCommands.get(i)[0].equals("PCMD")) pendingCommands.remove(i);
+                }
+            }
+            pendingCommands.add(new String[]{command, params});
+            return;
+        }
+
+        EventLog.log(EventLog.Event.COMMAND_SENT, seq);
         String atCommand = "AT*" + command + "=" + (seq++) + params + "\r";
-        new UdpPacketSenderTask().execute(ardroneInetAddress, COMMANDS_PORT, atCommand);
+        if (command.equals("PCMD")){
+            new UdpPacketSenderTask().execute(ardroneInetAddress, COMMANDS_PORT, atCommand,
+                    System.nanoTime(), commandSentListener);
+            startupTracker.recordFirstPcmd();
+        }
+        else {
+            new UdpPacketSenderTask().execute(ardroneInetAddress, COMMANDS_PORT, atCommand);
+        }
     }
 
     private String arrayToString(float[] array){
@@ -215,7 +422,7 @@ public class Ardrone {
     }
 
     // From ARDrone_SDK_2_0_1/ARDroneLib/Soft/Common/config.h
-    private static enum Animation {
+    static enum Animation {
         PHI_M30_DEG,
         PHI_30_DEG,
         THETA_M30_DEG,
@@ -235,7 +442,14 @@ public class Ardrone {
         FLIP_AHEAD,
         FLIP_BEHIND,
         FLIP_LEFT,
-        FLIP_RIGHT
+        FLIP_RIGHT;
+
+        /**
+         * @return the duration the drone is given for the animation, in milliseconds
+         */
+        int timeout(){
+            return AnimationTimeouts[ordinal()];
+        }
     }
 
     // From ARDrone_SDK_2_0_1/ARDroneLib/Soft/Common/navdata_common.h
@@ -0,0 +1,265 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Local copy of the drone configuration, used to skip CONFIG commands that would not
+ * change anything.
+ *
+ * The cache is filled from the configuration dump the drone writes on the control TCP
+ * port after an AT*CTRL config-get. CONFIGs are then sent one at a time, like the SDK
+ * config queue does: the write in flight moves into the cache when the drone
+ * acknowledges it (the COMMAND_CONTROL_ACK navdata state flag), which is then cleared
+ * with an AT*CTRL ack, and the next queued write only goes out once the flag is seen
+ * clear again. A single flag cannot tell which of several CONFIGs it acknowledges.
+ *
+ * The flag stays set until the drone processes our AT*CTRL ack, so only its rising edge
+ * is an acknowledgement. A write not acknowledged within PENDING_TIMEOUT is sent again.
+ */
+public class ConfigCache {
+    // Debugging
+    private static final String TAG = "ConfigCache";
+    private static final boolean D = false;
+
+    private static final int CONTROL_PORT = 5559;
+    private static final int CONNECT_TIMEOUT = 1000; // ms
+    private static final int READ_TIMEOUT = 1000; // ms
+    private static final int CONFIG_MAX_SIZE = 16384;
+
+    // The write in flight is sent again if not acknowledged in this time (e.g. lost packet)
+    private static final long PENDING_TIMEOUT = 1000; // ms
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long ACK_RESEND_PERIOD = 200; // ms
+
+    // AT*CTRL modes, from ARDrone_SDK_2_0_1/ARDroneLib/Soft/Common/ardrone_api.h
+    static final int CFG_GET_CONTROL_MODE = 4;
+    static final int ACK_CONTROL_MODE = 5;
+
+    // Keys that trigger an action every time they are written instead of holding a setting
+    private static final Set<String> ACTION_KEYS = new HashSet<String>(Arrays.asList(
+            "control:flight_anim",
+            "userbox:userbox_cmd"));
+
+    private final Ardrone ardrone;
+
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final Queue<PendingWrite> queuedWrites = new ArrayDeque<PendingWrite>();
+    private PendingWrite inFlight; // Sent and not acknowledged yet, null if none
+    private boolean ackFlagSet = true; // Until seen clear, in case it is left over from before
+    private long lastAckSent = 0;
+
+    public ConfigCache(Ardrone ardrone){
+        this.ardrone = ardrone;
+    }
+
+    /**
+     * Requests the configuration dump and replaces the cache with it.
+     * Blocks on the network, so call it off the UI thread.
+     * @return true if the configuration was read
+     */
+    public boolean load(InetAddress address){
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, CONTROL_PORT), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            ardrone.sendControl(CFG_GET_CONTROL_MODE);
+
+            String config = readConfig(socket.getInputStream());
+            Map<String, String> parsed = parse(config);
+            synchronized (this){
+                values.clear();
+                values.putAll(parsed);
+            }
+            if(D) Log.d(TAG, "Loaded " + parsed.size() + " configuration values");
+            return !parsed.isEmpty();
+        } catch (IOException e) {
+            Log.e(TAG, "Error when reading the configuration from the control port", e);
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * The dump is sent as "section:key = value" lines terminated by a NUL. The drone does
+     * not close the connection, so a read timeout after some data also ends it.
+     */
+    private static String readConfig(InputStream in) throws IOException {
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            int read;
+            while (config.size() < CONFIG_MAX_SIZE && (read = in.read(buffer)) > 0){
+                int end = indexOfNul(buffer, read);
+                config.write(buffer, 0, end);
+                if (end < read) break;
+            }
+        } catch (SocketTimeoutException e) {
+            if (config.size() == 0) throw e;
+        }
+        return config.toString("US-ASCII");
+    }
+
+    private static int indexOfNul(byte[] buffer, int length){
+        for (int i = 0; i < length; i++){
+            if (buffer[i] == 0) return i;
+        }
+        return length;
+    }
+
+    static Map<String, String> parse(String config) throws IOException {
+        Map<String, String> parsed = new HashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new StringReader(config));
+        String line;
+        while ((line = reader.readLine()) != null){
+            int separator = line.indexOf('=');
+            if (separator <= 0) continue;
+            parsed.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+        }
+        return parsed;
+    }
+
+    public synchronized String get(String key){
+        return values.get(key);
+    }
+
+    public synchronized int size(){
+        return values.size();
+    }
+
+    /**
+     * @return false if the drone already has (or is being sent) this value
+     */
+    public synchronized boolean needsWrite(String key, String value){
+        if (ACTION_KEYS.contains(key)) return true;
+
+        PendingWrite latest = latestWrite(key);
+        if (latest != null) return !latest.value.equals(value);
+        return !value.equals(values.get(key));
+    }
+
+    // Last write of the key queued or in flight, null if none
+    private PendingWrite latestWrite(String key){
+        PendingWrite latest = null;
+        if (inFlight != null && inFlight.key.equals(key)) latest = inFlight;
+        for (PendingWrite write : queuedWrites){
+            if (write.key.equals(key)) latest = write;
+        }
+        return latest;
+    }
+
+    /**
+     * @return true if this value is queued or in flight
+     */
+    public synchronized boolean isPending(String key, String value){
+        PendingWrite latest = latestWrite(key);
+        return latest != null && latest.value.equals(value);
+    }
+
+    /**
+     * Queues a CONFIG, it is sent once the writes before it are acknowledged
+     */
+    public synchronized void write(String key, String value){
+        queuedWrites.add(new PendingWrite(key, value));
+    }
+
+    /**
+     * Called by the navdata reader with the COMMAND_CONTROL_ACK flag of every packet
+     */
+    void onAckState(boolean acknowledged){
+        PendingWrite send = null;
+        boolean sendAck = false;
+        synchronized (this){
+            boolean rising = acknowledged && !ackFlagSet;
+            ackFlagSet = acknowledged;
+
+            long now = System.currentTimeMillis();
+            if (rising){
+                // Acknowledges the write in flight, the only one sent since the last edge
+                if (inFlight != null){
+                    if (!ACTION_KEYS.contains(inFlight.key)) values.put(inFlight.key, inFlight.value);
+                    inFlight = null;
+                }
+                sendAck = true;
+            }
+            // Still set: our AT*CTRL ack was lost or not processed yet, send it again
+            else if (acknowledged){
+                sendAck = now - lastAckSent >= ACK_RESEND_PERIOD;
+            }
+            else if (inFlight != null){
+                if (now - inFlight.time >= PENDING_TIMEOUT) send = retry(inFlight);
+            }
+            else {
+                send = inFlight = queuedWrites.poll();
+            }
+
+            if (send != null){
+                send.time = now;
+                send.attempts++;
+            }
+            if (sendAck) lastAckSent = now;
+        }
+
+        // Outside of the lock, like every call into the Ardrone
+        if (sendAck) ardrone.sendControl(ACK_CONTROL_MODE);
+        if (send != null) ardrone.sendConfig(send.key, send.value);
+    }
+
+    // Called with the write in flight not acknowledged in time, returns it if it is to be resent
+    private PendingWrite retry(PendingWrite write){
+        // Replaying an action that may have happened (only the ack lost) is worse than missing it
+        if (ACTION_KEYS.contains(write.key) || write.attempts >= MAX_ATTEMPTS){
+            Log.w(TAG, "CONFIG " + write.key + " not acknowledged after " + write.attempts + " attempts");
+            inFlight = queuedWrites.poll();
+            return inFlight;
+        }
+        return write;
+    }
+
+    private static class PendingWrite {
+        final String key;
+        final String value;
+        long time; // Last sent, System.currentTimeMillis()
+        int attempts = 0;
+
+        PendingWrite(String key, String value){
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Always-on trace of fixed-size binary events, cheap enough to log every navdata packet.
+ *
+ * Each thread writes its events (type, timestamp and up to three numbers) into its own
+ * ring buffer of primitive arrays, so logging takes no lock and allocates nothing. Events
+ * are only turned into text when the log is dumped; the oldest ones are overwritten.
+ */
+public final class EventLog {
+    // Debugging
+    private static final String TAG = "EventLog";
+
+    public enum Event {
+        ACTIVITY_CREATE("+++ ON CREATE +++"),
+        ACTIVITY_START("++ ON START ++"),
+        ACTIVITY_RESUME("+ ON RESUME +"),
+        ACTIVITY_PAUSE("- ON PAUSE -"),
+        ACTIVITY_DESTROY("--- ON DESTROY ---"),
+        STAGE_READY("Startup stage ready: %d"),
+        COMMAND_SENT("Sent command seq: %d"),
+        NAVDATA_RECEIVED("Received navdata with seq: %d, size: %d"),
+        NAVDATA_OPTION("Option ID: %d, Size: %d"),
+        SAMPLING_MODE("Sensor sampling mode: %d");
+
+        private final String format;
+
+        Event(String format){
+            this.format = format;
+        }
+    }
+
+    private static final int RING_SIZE = 1024; // Events kept per thread
+    private static final int MAX_RINGS = 16; // Rings of finished threads beyond this are dropped
+    private static final int MAX_ARGS = 3;
+    private static final Event[] EVENTS = Event.values();
+
+    private static final List<Ring> rings = new CopyOnWriteArrayList<Ring>();
+    private static final ThreadLocal<Ring> threadRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread());
+            rings.add(ring);
+            for (Ring old : rings){
+                if (rings.size() <= MAX_RINGS) break;
+                if (!old.owner.isAlive()) rings.remove(old);
+            }
+            return ring;
+        }
+    };
+
+    private EventLog(){
+    }
+
+    public static void log(Event event){
+        threadRing.get().write(event, 0, 0, 0);
+    }
+
+    public static void log(Event event, long arg0){
+        threadRing.get().write(event, arg0, 0, 0);
+    }
+
+    public static void log(Event event, long arg0, long arg1){
+        threadRing.get().write(event, arg0, arg1, 0);
+    }
+
+    public static void log(Event event, long arg0, long arg1, long arg2){
+        threadRing.get().write(event, arg0, arg1, arg2);
+    }
+
+    /**
+     * Formats the events of all threads, oldest first
+     */
+    public static List<String> dump(){
+        List<Record> records = new ArrayList<Record>();
+        for (Ring ring : rings) ring.readInto(records);
+
+        Collections.sort(records, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+            }
+        });
+
+        List<String> lines = new ArrayList<String>(records.size());
+        long origin = records.isEmpty() ? 0 : records.get(0).time;
+        for (Record record : records){
+            lines.add(String.format("%10.3f ms [%s] ", (record.time - origin) / 1e6, record.thread)
+                    + String.format(record.event.format, record.args[0], record.args[1], record.args[2]));
+        }
+        return lines;
+    }
+
+    public static void dumpToLog(){
+        for (String line : dump()) Log.i(TAG, line);
+    }
+
+    /**
+     * Single writer ring buffer. The writer publishes each event by incrementing the
+     * volatile count; a reader detects the events overwritten while it was copying them.
+     */
+    private static class Ring {
+        final Thread owner;
+        final String thread;
+        final long[] times = new long[RING_SIZE];
+        final int[] types = new int[RING_SIZE];
+        final long[] args = new long[RING_SIZE * MAX_ARGS];
+        volatile long count = 0;
+
+        Ring(Thread owner){
+            this.owner = owner;
+            this.thread = owner.getName();
+        }
+
+        void write(Event event, long arg0, long arg1, long arg2){
+            long n = count;
+            int slot = (int) (n % RING_SIZE);
+            times[slot] = System.nanoTime();
+            types[slot] = event.ordinal();
+            args[slot * MAX_ARGS] = arg0;
+            args[slot * MAX_ARGS + 1] = arg1;
+            args[slot * MAX_ARGS + 2] = arg2;
+            count = n + 1;
+        }
+
+        void readInto(List<Record> records){
+            long end = count;
+            long start = Math.max(0, end - RING_SIZE);
+            List<Record> read = new ArrayList<Record>((int) (end - start));
+            for (long n = start; n < end; n++){
+                int slot = (int) (n % RING_SIZE);
+                read.add(new Record(thread, times[slot], EVENTS[types[slot]],
+                        args[slot * MAX_ARGS], args[slot * MAX_ARGS + 1], args[slot * MAX_ARGS + 2]));
+            }
+
+            // Drop what the writer overwrote (or is overwriting) while it was being read
+            long overwritten = count - RING_SIZE + 1 - start;
+            if (overwritten > 0) read = read.subList((int) Math.min(overwritten, read.size()), read.size());
+            records.addAll(read);
+        }
+    }
+
+    private static class Record {
+        final String thread;
+        final long time;
+        final Event event;
+        final Long[] args;
+
+        Record(String thread, long time, Event event, long arg0, long arg1, long arg2){
+            this.thread = thread;
+            this.time = time;
+            this.event = event;
+            this.args = new Long[]{arg0, arg1, arg2};
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Closed-loop altitude and heading hold.
+ *
+ * Runs on its own fixed-period thread: every period it waits for the next navdata packet
+ * (or the end of the period, whichever comes first), runs the altitude and heading PID
+ * loops against the navdata altitude, yaw and vertical velocity, and sends a PCMD with
+ * the pilot's roll and pitch plus the computed vertical and yaw speeds.
+ *
+ * While engaged, head pitch in elevation mode moves the target altitude and the Glass
+ * heading moves the target heading, relative to where they were when the hold engaged.
+ */
+public class FlightController extends Thread {
+    // Debugging
+    private static final String TAG = "FlightController";
+    private static final boolean D = false;
+
+    public static final long PERIOD = 30; // ms, the PCMD rate recommended by the SDK
+    private static final long PERIOD_NANOS = PERIOD * 1000000L;
+    private static final long NAVDATA_STALE_NANOS = 500 * 1000000L;
+
+    // Target altitude limits (cm) and climb rate at full head pitch (cm/s)
+    private static final float MIN_ALTITUDE = 30f;
+    private static final float MAX_ALTITUDE = 500f;
+    private static final float CLIMB_RATE = 50f;
+
+    private final Ardrone ardrone;
+    private final Navdata navdata;
+
+    // Error in cm -> vertical speed, error in degrees -> yaw speed
+    private final PidController altitudePid = new PidController(0.01f, 0.002f, 0.002f, 1f);
+    private final PidController headingPid = new PidController(0.02f, 0f, 0.002f, 1f);
+
+    private final LoopTimingStats timingStats = new LoopTimingStats(PERIOD_NANOS);
+
+    private volatile boolean keepRunning = true;
+
+    // Pilot input, written by the UI thread
+    private float pilotRoll, pilotPitch, pilotClimb, pilotHeading;
+
+    // Controller state, only touched by this thread
+    private boolean engaged = false;
+    private float targetAltitude;
+    private float targetYaw;
+    private float engageYaw;
+    private float engageHeading;
+    private float lastYaw;
+    private float yawRate; // deg/s, from the last two navdata samples
+
+    public FlightController(Ardrone ardrone, Navdata navdata){
+        super(TAG);
+        this.ardrone = ardrone;
+        this.navdata = navdata;
+    }
+
+    /**
+     * @param roll    drone roll in [-1, 1], passed through
+     * @param pitch   drone pitch in [-1, 1], passed through
+     * @param climb   target altitude change demand in [-1, 1]
+     * @param heading Glass heading in degrees
+     */
+    public synchronized void setPilotInput(float roll, float pitch, float climb, float heading){
+        pilotRoll = roll;
+        pilotPitch = pitch;
+        pilotClimb = climb;
+        pilotHeading = heading;
+    }
+
+    public void cancel(){
+        keepRunning = false;
+        interrupt();
+    }
+
+    public String getTimingReport(){
+        return timingStats.getReport();
+    }
+
+    public void run(){
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+
+        int lastSequence = navdata.sequence;
+        long lastNavdataNanos = 0;
+        long lastUpdateNanos = System.nanoTime();
+        long nextDeadline = lastUpdateNanos + PERIOD_NANOS;
+
+        try {
+            while (keepRunning){
+                long waitMillis = Math.max(1, (nextDeadline - System.nanoTime()) / 1000000L);
+                boolean fresh = navdata.waitForUpdate(lastSequence, waitMillis);
+
+                long start = System.nanoTime();
+                float navdataDt = 0f; // Time since the previous navdata sample, 0 if none new
+                if (fresh){
+                    lastSequence = navdata.sequence;
+                    if (lastNavdataNanos != 0) navdataDt = (start - lastNavdataNanos) / 1e9f;
+                    lastNavdataNanos = start;
+                }
+                float dt = (start - lastUpdateNanos) / 1e9f;
+                lastUpdateNanos = start;
+
+                control(dt, navdataDt,
+                        lastNavdataNanos != 0 && start - lastNavdataNanos < NAVDATA_STALE_NANOS);
+
+                long end = System.nanoTime();
+                timingStats.record(start, end - start);
+
+                // Keep the fixed period when navdata arrived early in it
+                long remaining = nextDeadline - end;
+                if (remaining > 0) sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+                nextDeadline += PERIOD_NANOS;
+                if (nextDeadline < System.nanoTime()){
+                    nextDeadline = System.nanoTime() + PERIOD_NANOS; // Skip missed periods
+                }
+            }
+        } catch (InterruptedException e) {
+        } finally {
+            if(D) Log.d(TAG, getTimingReport());
+        }
+    }
+
+    /**
+     * @param dt        time since the previous period, in seconds
+     * @param navdataDt time since the previous navdata sample if a new one arrived in this
+     *                  period, 0 otherwise. Rates are only derived from new samples, periods
+     *                  without one (most of them at the demo rate) keep the last rate.
+     */
+    private void control(float dt, float navdataDt, boolean hasNavdata){
+        float roll, pitch, climb, heading;
+        synchronized (this){
+            roll = pilotRoll;
+            pitch = pilotPitch;
+            climb = pilotClimb;
+            heading = pilotHeading;
+        }
+
+        if (ardrone.isUnderMissionControl()){
+            // A mission flies the drone, take over again from wherever it leaves it
+            engaged = false;
+            return;
+        }
+
+        if (!hasNavdata){
+            // Flying blind: do not fight the drone, just keep it in place
+            engaged = false;
+            ardrone.hover();
+            return;
+        }
+
+        float altitude, yaw, velocityZ;
+        boolean isFlying;
+        synchronized (navdata){
+            altitude = navdata.altitude;
+            yaw = navdata.yaw / 1000f; // milli-degrees to degrees
+            velocityZ = navdata.velocityZ / 10f; // mm/s to cm/s
+            isFlying = navdata.isFlying();
+        }
+
+        if (!isFlying){
+            engaged = false;
+            ardrone.hover();
+            return;
+        }
+
+        if (!engaged){
+            targetAltitude = altitude;
+            engageYaw = targetYaw = lastYaw = yaw;
+            yawRate = 0f;
+            engageHeading = heading;
+            altitudePid.reset();
+            headingPid.reset();
+            engaged = true;
+        }
+
+        targetAltitude = Math.max(MIN_ALTITUDE,
+                Math.min(MAX_ALTITUDE, targetAltitude + climb * CLIMB_RATE * dt));
+        targetYaw = wrapDegrees(engageYaw + heading - engageHeading);
+
+        if (navdataDt > 0){
+            yawRate = wrapDegrees(yaw - lastYaw) / navdataDt;
+            lastYaw = yaw;
+        }
+
+        float verticalSpeed = altitudePid.update(targetAltitude - altitude, -velocityZ, dt);
+        float yawSpeed = headingPid.update(wrapDegrees(targetYaw - yaw), -yawRate, dt);
+
+        ardrone.atPcmd(roll, pitch, verticalSpeed, yawSpeed);
+    }
+
+    /**
+     * Wraps an angle in degrees to [-180, 180)
+     */
+    private static float wrapDegrees(float angle){
+        angle %= 360f;
+        if (angle >= 180f) angle -= 360f;
+        if (angle < -180f) angle += 360f;
+        return angle;
+    }
+}
@@ -0,0 +1,82 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Collects timing statistics of a periodic loop: the jitter of each period against
+ * the nominal one and the time spent computing inside each iteration.
+ * All values are recorded in nanoseconds and reported in milliseconds.
+ */
+public class LoopTimingStats {
+    private final long nominalPeriodNanos;
+
+    private long lastStartNanos = 0;
+    private long count = 0; // Periods measured
+    private long iterations = 0;
+    private long jitterSum = 0;
+    private long jitterMax = 0;
+    private long computeSum = 0;
+    private long computeMax = 0;
+    private long overruns = 0;
+
+    public LoopTimingStats(long nominalPeriodNanos){
+        this.nominalPeriodNanos = nominalPeriodNanos;
+    }
+
+    /**
+     * Records one iteration of the loop
+     * @param startNanos   System.nanoTime() when the iteration started
+     * @param computeNanos time spent computing in the iteration
+     */
+    public synchronized void record(long startNanos, long computeNanos){
+        if (lastStartNanos != 0){
+            long jitter = Math.abs((startNanos - lastStartNanos) - nominalPeriodNanos);
+            jitterSum += jitter;
+            jitterMax = Math.max(jitterMax, jitter);
+            count++;
+        }
+        lastStartNanos = startNanos;
+        iterations++;
+
+        computeSum += computeNanos;
+        computeMax = Math.max(computeMax, computeNanos);
+        if (computeNanos > nominalPeriodNanos) overruns++;
+    }
+
+    /**
+     * Marks a pause in the loop, the next period is not counted as jitter
+     */
+    public synchronized void restart(){
+        lastStartNanos = 0;
+    }
+
+    public synchronized void reset(){
+        lastStartNanos = count = iterations = jitterSum = jitterMax = computeSum = computeMax = overruns = 0;
+    }
+
+    public synchronized String getReport(){
+        return String.format(
+                "Period: %.1f ms, iterations: %d, jitter avg/max: %.3f/%.3f ms, " +
+                "compute avg/max: %.3f/%.3f ms, overruns: %d",
+                toMillis(nominalPeriodNanos), iterations,
+                count == 0 ? 0 : toMillis(jitterSum) / count, toMillis(jitterMax),
+                iterations == 0 ? 0 : toMillis(computeSum) / iterations, toMillis(computeMax),
+                overruns);
+    }
+
+    private static double toMillis(long nanos){
+        return nanos / 1e6;
+    }
+}
@@ -35,23 +35,41 @@ import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.ToggleButton;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * This is the main Activity that displays and sends sensor data
  */
 public class MainActivity extends Activity implements
-        SensorEventListener, TextToSpeech.OnInitListener {
+        SensorEventListener, TextToSpeech.OnInitListener, StartupTracker.Listener,
+        SensorSamplingGovernor.Listener {
 
     // Debugging
     private static final String TAG = "ARDroneCommanderMainActivity";
     private static final boolean D = true;
 
+    // Local UDP port the navdata is relayed to (e.g. a ground station on the device), 0 for none
+    private static final int NAVDATA_RELAY_PORT = 0;
+
     // ARDrone object
     private Ardrone ardrone;
+    private MissionScheduler mMissionScheduler;
 
-    // Sensor data
+    // Startup stages run in parallel off the UI thread
+    private StartupTracker mStartupTracker;
+    private ExecutorService mStartupExecutor;
+    private boolean mIsResumed = false;
+
+    // Sensor data, the sensors are set by the SENSORS startup stage
     private SensorManager mSensorManager;
-    private Sensor mSensorRotation;
-    private Sensor mSensorGyroscope;
+    private volatile Sensor mSensorRotation;
+    private volatile Sensor mSensorGyroscope;
     private Float mInitialHeading;
     private int mHeadingCount = 0;
     private float[] mRotationMatrix;
@@ -62,8 +80,21 @@ public class MainActivity extends Activity implements
     private float mYawSpeed = 0;
     private float mPitchSpeed = 0;
 
-    // Text to Speech
-    private TextToSpeech mSpeech;
+    // Lowers the sensor rates while landed or holding the head still
+    private SensorSamplingGovernor mSamplingGovernor;
+
+    // Head pose extrapolated over the command latency, and its recording for tuning it
+    private PosePredictor mPosePredictor;
+    private SensorTrace mSensorTrace;
+    private static final boolean RECORD_SENSOR_TRACE = false; // Saved to pose_trace.csv on pause
+    private static final int SENSOR_TRACE_SIZE = 60 * 60 * 2; // ~1 minute of both sensors
+
+    // Text to Speech, set by the SPEECH startup stage. The engine is created on a startup
+    // thread and onInit comes on the UI thread, in any order: ready once both happened
+    private final Object mSpeechLock = new Object();
+    private volatile TextToSpeech mSpeech;
+    private boolean mSpeechInitialized = false;
+    private boolean mDestroyed = false;
 
     // Layout Views
     private TextView mTextSensorData;
@@ -71,13 +102,18 @@ public class MainActivity extends Activity implements
     private TextView mTextInput;
     private ToggleButton mTakeoffToggle;
     private ToggleButton mElevationToggle;
+    private ToggleButton mHoldToggle;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        if(D) Log.e(TAG, "+++ ON CREATE +++");
+        mStartupTracker = new StartupTracker();
+        mStartupTracker.addListener(this);
+        EventLog.log(EventLog.Event.ACTIVITY_CREATE);
 
-        ardrone = new Ardrone();
+        // Commands are buffered until the NETWORK stage connects the drone
+        ardrone = new Ardrone(mStartupTracker);
+        mMissionScheduler = new MissionScheduler(ardrone);
 
         // Set up the window layout
         setContentView(R.layout.main);
@@ -88,53 +124,133 @@ public class MainActivity extends Activity implements
         // Toggle Buttons
         mTakeoffToggle = (ToggleButton) findViewById(R.id.takeoff_toggle);
         mElevationToggle = (ToggleButton) findViewById(R.id.elevation_toggle);
+        mHoldToggle = (ToggleButton) findViewById(R.id.hold_toggle);
+
+        mPosePredictor = new PosePredictor();
+        ardrone.setCommandSentListener(new UdpPacketSenderTask.OnSentListener() {
+            public void onSent(long latencyNanos) {
+                mPosePredictor.onCommandLatency(latencyNanos);
+            }
+        });
+        if (RECORD_SENSOR_TRACE) mSensorTrace = new SensorTrace(SENSOR_TRACE_SIZE);
 
-        // Sensor init
         mSensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
-        mSensorRotation = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
-        mSensorGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         mRotationMatrix = new float[16];
         mOrientation = new float[3];
-
-        // Text to Speech init
-        mSpeech = new TextToSpeech(this, this);
+        mSamplingGovernor = new SensorSamplingGovernor(mSensorManager, this, this);
 
         // Initialize text views
         mTextSensorData = (TextView) findViewById(R.id.text_sensor_data);
         mTextOutput = (TextView) findViewById(R.id.text_output);
         mTextInput = (TextView) findViewById(R.id.text_input);
+
+        startStages();
+    }
+
+    /**
+     * Starts the network (then navdata), sensors and speech initialization in parallel
+     */
+    private void startStages(){
+        mStartupExecutor = Executors.newFixedThreadPool(3);
+        mStartupExecutor.execute(new Runnable() {
+            public void run() {
+                ardrone.connect();
+            }
+        });
+        mStartupExecutor.execute(new Runnable() {
+            public void run() {
+                mSensorRotation = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+                mSensorGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+                mStartupTracker.markReady(StartupTracker.Stage.SENSORS);
+            }
+        });
+        mStartupExecutor.execute(new Runnable() {
+            public void run() {
+                TextToSpeech speech = new TextToSpeech(MainActivity.this, MainActivity.this);
+                boolean destroyed;
+                synchronized (mSpeechLock){
+                    destroyed = mDestroyed;
+                    if (!destroyed) mSpeech = speech;
+                }
+                // Destroyed meanwhile: nobody else will release the engine's service binding
+                if (destroyed) speech.shutdown();
+                else markSpeechReadyIfInitialized();
+            }
+        });
+        mStartupExecutor.shutdown();
+    }
+
+    public void onStageReady(final StartupTracker.Stage stage) {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                EventLog.log(EventLog.Event.STAGE_READY, stage.ordinal());
+                if (stage == StartupTracker.Stage.SENSORS && mIsResumed){
+                    startSensorTracking();
+                }
+                if (stage == StartupTracker.Stage.NAVDATA && NAVDATA_RELAY_PORT != 0){
+                    startNavdataRelay();
+                }
+            }
+        });
+    }
+
+    private void startNavdataRelay(){
+        try {
+            ardrone.navdata.startRelay().addUdpSubscriber(
+                    new InetSocketAddress("127.0.0.1", NAVDATA_RELAY_PORT));
+        } catch (SocketException e) {
+            Log.e(TAG, "Failed relaying navdata to port " + NAVDATA_RELAY_PORT, e);
+        }
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        if(D) Log.e(TAG, "++ ON START ++");
+        EventLog.log(EventLog.Event.ACTIVITY_START);
     }
 
     @Override
     public synchronized void onResume() {
         super.onResume();
-        if(D) Log.e(TAG, "+ ON RESUME +");
-        startSensorTracking();
+        EventLog.log(EventLog.Event.ACTIVITY_RESUME);
+        mIsResumed = true;
+        if (mStartupTracker.isReady(StartupTracker.Stage.SENSORS)) startSensorTracking();
         showWifiSSID();
+        ardrone.navdataProfileManager.subscribe(TAG, Navdata.Option.DEMO.mask(), false);
     }
 
     @Override
     public synchronized void onPause() {
         speak(R.string.voice_bye);
         super.onPause();
+        mIsResumed = false;
         stopSensorTracking();
-        if(D) Log.e(TAG, "- ON PAUSE -");
+        ardrone.navdataProfileManager.unsubscribe(TAG);
+        if(D) Log.e(TAG, ardrone.navdataProfileManager.getReport());
+        if (RECORD_SENSOR_TRACE) saveSensorTrace();
+        if(D) Log.e(TAG, mSamplingGovernor.getReport());
+        if(D && NAVDATA_RELAY_PORT != 0 && ardrone.navdata != null){
+            Log.e(TAG, ardrone.navdata.startRelay().getReport());
+        }
+        EventLog.log(EventLog.Event.ACTIVITY_PAUSE);
     }
 
     @Override
     public void onDestroy() {
+        mStartupExecutor.shutdownNow();
+        mMissionScheduler.destroy();
         ardrone.destroy();
         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-        mSpeech.shutdown();
+        TextToSpeech speech;
+        synchronized (mSpeechLock){
+            mDestroyed = true;
+            speech = mSpeech;
+        }
+        if (speech != null) speech.shutdown();
         super.onDestroy();
 
-        if(D) Log.e(TAG, "--- ON DESTROY ---");
+        EventLog.log(EventLog.Event.ACTIVITY_DESTROY);
+        if(D) EventLog.dumpToLog();
     }
 
     private void setStatus(CharSequence subTitle) {
@@ -165,10 +281,30 @@ public class MainActivity extends Activity implements
             case R.id.usb_record:
                 ardrone.toggleVideoRecording();
                 return true;
+            case R.id.run_mission:
+                mMissionScheduler.enqueue(createDemoMission());
+                speak(R.string.voice_mission);
+                return true;
         }
         return false;
     }
 
+    /**
+     * Takes off, flies forward, shakes, flies back and lands
+     */
+    private static MissionScheduler.Mission createDemoMission(){
+        return new MissionScheduler.Mission("demo",
+                MissionScheduler.Step.takeoff(),
+                MissionScheduler.Step.hover(2000),
+                MissionScheduler.Step.move(0f, -0.1f, 0f, 0f, 1500),
+                MissionScheduler.Step.hover(1000),
+                MissionScheduler.Step.animation(Ardrone.Animation.YAW_SHAKE),
+                MissionScheduler.Step.hover(1000),
+                MissionScheduler.Step.move(0f, 0.1f, 0f, 0f, 1500),
+                MissionScheduler.Step.hover(2000),
+                MissionScheduler.Step.land());
+    }
+
     /**
      * Displays the Wifi SSID info in status bar
      */
@@ -193,6 +329,7 @@ public class MainActivity extends Activity implements
 
     public void onTakeoffToggleClicked(View view) {
         boolean on = ((ToggleButton) view).isChecked();
+        mMissionScheduler.cancel(); // The pilot takes over
 
         if (on) {
             setCommandText("Takeoff");
@@ -213,31 +350,110 @@ public class MainActivity extends Activity implements
         speak(on ? R.string.voice_elevation_on : R.string.voice_elevation_off);
     }
 
+    public void onHoldToggleClicked(View view) {
+        boolean on = ((ToggleButton) view).isChecked();
+        if (on && !ardrone.setHoldMode(true)){
+            // No navdata yet (NAVDATA stage not ready), the drone stays open-loop
+            mHoldToggle.setChecked(false);
+            speak(R.string.voice_hold_unavailable);
+            return;
+        }
+        if (!on) ardrone.setHoldMode(false);
+        speak(on ? R.string.voice_hold_on : R.string.voice_hold_off);
+    }
+
+    public void onPredictToggleClicked(View view) {
+        boolean on = ((ToggleButton) view).isChecked();
+        mPosePredictor.setEnabled(on);
+        speak(on ? R.string.voice_prediction_on : R.string.voice_prediction_off);
+    }
+
     public void onFlipButtonClicked(View view){
-        ardrone.flipLeft();
+        // As a mission, so the head PCMDs are held back and cannot cut the flip short
+        mMissionScheduler.enqueue(new MissionScheduler.Mission("flip",
+                MissionScheduler.Step.animation(Ardrone.Animation.FLIP_LEFT)));
     }
 
     private void speak(int voiceCommandId){
-        mSpeech.speak(getString(voiceCommandId), TextToSpeech.QUEUE_FLUSH, null);
+        // Nothing is said until the speech engine is ready
+        TextToSpeech speech = mSpeech;
+        if (speech == null || !mStartupTracker.isReady(StartupTracker.Stage.SPEECH)) return;
+        speech.speak(getString(voiceCommandId), TextToSpeech.QUEUE_FLUSH, null);
     }
 
 
     private void startSensorTracking(){
+        // onResume and a queued onStageReady can both get here
+        if (mSamplingGovernor.isStarted()) return;
         // Reset initial heading
         mInitialHeading = null;
-        // Start listening to sensor data
-        mSensorManager.registerListener(this, mSensorRotation, SensorManager.SENSOR_DELAY_UI);
-        mSensorManager.registerListener(this, mSensorGyroscope, SensorManager.SENSOR_DELAY_UI);
+        mHeadingCount = 0;
+        // Start listening to sensor data, at the rates the governor picks
+        mSamplingGovernor.start(mSensorRotation, mSensorGyroscope);
     }
 
     private void stopSensorTracking(){
         // Stop listening to sensor data
-        mSensorManager.unregisterListener(this);
+        mSamplingGovernor.stop();
+    }
+
+    public void onSamplingModeChanged(SensorSamplingGovernor.Mode mode) {
+        if (!mode.usesGyroscope()){
+            // No more gyroscope samples, do not keep sending the last speeds
+            mPitchSpeed = 0;
+            mYawSpeed = 0;
+            mPosePredictor.clearGyroscope();
+        }
+    }
+
+    /**
+     * @return whether the drone is flying or has been told to take off
+     */
+    private boolean isFlying(){
+        Navdata navdata = ardrone.navdata;
+        return mTakeoffToggle.isChecked() || (navdata != null && navdata.isFlying());
+    }
+
+    /**
+     * Saves the recorded head movement for the PosePredictionEvaluator, on its own thread
+     * from a copy so the UI thread neither waits for the file nor for the recording
+     */
+    private void saveSensorTrace(){
+        final SensorTrace trace = mSensorTrace.copy();
+        final File file = new File(getExternalFilesDir(null), "pose_trace.csv");
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    FileWriter writer = new FileWriter(file);
+                    try {
+                        trace.writeCsv(writer);
+                    } finally {
+                        writer.close();
+                    }
+                    Log.i(TAG, "Saved " + trace.size() + " sensor samples to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed saving the sensor trace", e);
+                }
+            }
+        }, "SensorTraceWriter").start();
     }
 
     @Override
     public void onInit(int status) {
-        // Called when the text-to-speech engine is initialized. Nothing to do here.
+        // Called when the text-to-speech engine is initialized
+        if (status != TextToSpeech.SUCCESS) return;
+        synchronized (mSpeechLock){
+            mSpeechInitialized = true;
+        }
+        markSpeechReadyIfInitialized();
+    }
+
+    // The SPEECH stage is ready once the engine is both assigned and initialized
+    private void markSpeechReadyIfInitialized(){
+        synchronized (mSpeechLock){
+            if (mSpeech == null || !mSpeechInitialized || mDestroyed) return;
+        }
+        mStartupTracker.markReady(StartupTracker.Stage.SPEECH);
     }
 
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
@@ -251,6 +467,9 @@ public class MainActivity extends Activity implements
             case Sensor.TYPE_GYROSCOPE:
                 mPitchSpeed = event.values[0];
                 mYawSpeed = -event.values[1];
+                mPosePredictor.onGyroscope(event.timestamp, mPitchSpeed, mYawSpeed);
+                if (RECORD_SENSOR_TRACE) mSensorTrace.record(event.timestamp, SensorTrace.GYROSCOPE, mPitchSpeed, mYawSpeed);
+                mSamplingGovernor.onGyroscope(event.timestamp, mPitchSpeed, mYawSpeed);
                 break;
 
             case Sensor.TYPE_ROTATION_VECTOR:
@@ -269,6 +488,9 @@ public class MainActivity extends Activity implements
                 mHeading = mOrientation[0]; // - mInitialHeading;
                 mPitch = -mOrientation[1];
                 mRoll = mOrientation[2];
+                mPosePredictor.onOrientation(event.timestamp, mRoll, mPitch);
+                if (RECORD_SENSOR_TRACE) mSensorTrace.record(event.timestamp, SensorTrace.ROTATION, mRoll, mPitch);
+                mSamplingGovernor.onOrientation(event.timestamp, mRoll, mPitch, isFlying());
                 break;
         }
 
@@ -277,12 +499,16 @@ public class MainActivity extends Activity implements
 
         mTextSensorData.setText(sensorData);
 
-        ardrone.move(mRoll, mPitch, mPitchSpeed, mYawSpeed, mElevationToggle.isChecked());
+        float relativeHeading = mInitialHeading != null ? mHeading - mInitialHeading : 0f;
+        ardrone.move(mPosePredictor.getRoll(), mPosePredictor.getPitch(), mPitchSpeed,
+                mPosePredictor.getYawSpeed(), relativeHeading,
+                mElevationToggle.isChecked());
 
         String navdataText = "";
-        if (ardrone.navdata.isReceivingData){
-            navdataText = new String("Flash Drive? " + ardrone.navdata.isFlashDriveReady() +
-                    ". Battery: " + ardrone.navdata.batteryPercentage + "%" + ". Seq: " + ardrone.navdata.sequence);
+        Navdata navdata = ardrone.navdata;
+        if (navdata != null && navdata.isReceivingData){
+            navdataText = new String("Flash Drive? " + navdata.isFlashDriveReady() +
+                    ". Battery: " + navdata.batteryPercentage + "%" + ". Seq: " + navdata.sequence);
         }
         mTextInput.setText(navdataText);
     }
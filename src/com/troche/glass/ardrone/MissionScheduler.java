@@ -0,0 +1,289 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Flies queued missions: scripted sequences of takeoff, timed moves, animations, hovers
+ * and landing.
+ *
+ * Every step is driven by timeouts on a single TimingWheel, so any number of missions can
+ * be queued without a thread per timer. Moves and hovers resend their PCMD every
+ * PCMD_PERIOD, as the drone expects a command at least every 50 ms, at fixed deadlines
+ * so the lateness of one does not shift the next. Takeoffs, with nothing to command, and
+ * animations, which a PCMD would interrupt, get an AT*COMWDG keep-alive at the same period
+ * instead. A mission whose takeoff fails is aborted along with the queued ones. While a
+ * mission runs the drone is under mission control: the pilot and hold mode PCMDs are held
+ * back, so they cannot cut an animation short or fight a scripted move. Missions run one
+ * after the other; taking over with the takeoff toggle cancels them.
+ */
+public class MissionScheduler {
+    // Debugging
+    private static final String TAG = "MissionScheduler";
+    private static final boolean D = false;
+
+    private static final long PCMD_PERIOD = 30; // ms
+    private static final long TAKEOFF_TIMEOUT = 6000; // ms
+    private static final long MIN_ANIMATION_TIME = 1000; // ms, the flips timeouts are only 15 ms
+
+    public static class Step {
+        public enum Type {TAKEOFF, MOVE, ANIMATION, HOVER, LAND}
+
+        final Type type;
+        final float roll, pitch, verticalSpeed, yawSpeed;
+        final long duration; // ms
+        final Ardrone.Animation animation;
+
+        private Step(Type type, float roll, float pitch, float verticalSpeed, float yawSpeed,
+                     long duration, Ardrone.Animation animation){
+            this.type = type;
+            this.roll = roll;
+            this.pitch = pitch;
+            this.verticalSpeed = verticalSpeed;
+            this.yawSpeed = yawSpeed;
+            this.duration = duration;
+            this.animation = animation;
+        }
+
+        /**
+         * Takes off, done once navdata reports flying. If it does not within
+         * TAKEOFF_TIMEOUT, the drone is told to land and all the missions are dropped.
+         */
+        public static Step takeoff(){
+            return new Step(Type.TAKEOFF, 0, 0, 0, 0, TAKEOFF_TIMEOUT, null);
+        }
+
+        /**
+         * Flies with the given PCMD values, all in [-1, 1], for durationMillis
+         */
+        public static Step move(float roll, float pitch, float verticalSpeed, float yawSpeed,
+                                long durationMillis){
+            return new Step(Type.MOVE, roll, pitch, verticalSpeed, yawSpeed, durationMillis, null);
+        }
+
+        static Step animation(Ardrone.Animation animation){
+            return new Step(Type.ANIMATION, 0, 0, 0, 0,
+                    Math.max(animation.timeout(), MIN_ANIMATION_TIME), animation);
+        }
+
+        public static Step hover(long durationMillis){
+            return new Step(Type.HOVER, 0, 0, 0, 0, durationMillis, null);
+        }
+
+        public static Step land(){
+            return new Step(Type.LAND, 0, 0, 0, 0, 0, null);
+        }
+
+        public String toString(){
+            return type + (animation != null ? " " + animation : "") + (duration > 0 ? " " + duration + " ms" : "");
+        }
+    }
+
+    public static class Mission {
+        final String name;
+        final List<Step> steps;
+
+        public Mission(String name, Step... steps){
+            this.name = name;
+            this.steps = Collections.unmodifiableList(Arrays.asList(steps));
+        }
+    }
+
+    private final Ardrone ardrone;
+    private final TimingWheel wheel = new TimingWheel();
+    private final LoopTimingStats pcmdTiming = new LoopTimingStats(PCMD_PERIOD * 1000000L);
+
+    private final Queue<Mission> missions = new ArrayDeque<Mission>();
+    private Mission mission; // Running mission, null when idle
+    private int stepIndex;
+    private long stepEnd; // System.nanoTime() deadline of the running step
+    private long nextDeadline; // System.nanoTime() deadline of the pending timeout
+    private TimingWheel.Timeout timeout;
+    private int generation = 0; // Of the pending timeout, older ones are stale
+
+    /**
+     * A timeout already running when it is cancelled still gets the lock afterwards, maybe
+     * once another mission started; only the latest one scheduled may continue it.
+     */
+    private class StepTimeout implements Runnable {
+        private final int generation;
+
+        StepTimeout(int generation){
+            this.generation = generation;
+        }
+
+        public void run() {
+            synchronized (MissionScheduler.this){
+                if (mission != null && generation == MissionScheduler.this.generation) continueStep();
+            }
+        }
+    }
+
+    public MissionScheduler(Ardrone ardrone){
+        this.ardrone = ardrone;
+    }
+
+    public void destroy(){
+        cancel();
+        wheel.destroy();
+    }
+
+    /**
+     * Queues the mission, it starts right away if no other is running
+     */
+    public synchronized void enqueue(Mission newMission){
+        missions.add(newMission);
+        if (mission == null) startNextMission(System.nanoTime());
+    }
+
+    /**
+     * Drops the running and queued missions, leaving the drone hovering
+     */
+    public synchronized void cancel(){
+        missions.clear();
+        if (mission == null) return;
+        if (timeout != null) timeout.cancel();
+        generation++;
+        Log.i(TAG, "Mission " + mission.name + " cancelled at step " + stepIndex);
+        mission = null;
+        ardrone.hover();
+        ardrone.setMissionControl(false);
+    }
+
+    public synchronized boolean isRunning(){
+        return mission != null;
+    }
+
+    public synchronized int getQueuedMissions(){
+        return missions.size();
+    }
+
+    /**
+     * Lateness of the timeouts and jitter of the PCMD resend period
+     */
+    public String getReport(){
+        return wheel.getReport() + ". PCMD " + pcmdTiming.getReport();
+    }
+
+    private void startNextMission(long now){
+        mission = missions.poll();
+        if (mission == null){
+            ardrone.setMissionControl(false);
+            return;
+        }
+        if(D) Log.d(TAG, "Starting mission " + mission.name);
+        ardrone.setMissionControl(true);
+        stepIndex = 0;
+        startStep(now);
+    }
+
+    private void startStep(long now){
+        if (stepIndex >= mission.steps.size()){
+            Log.i(TAG, "Mission " + mission.name + " done. " + getReport());
+            startNextMission(now);
+            return;
+        }
+
+        Step step = mission.steps.get(stepIndex);
+        if(D) Log.d(TAG, "Step " + stepIndex + ": " + step);
+        stepEnd = now + step.duration * 1000000L;
+        switch (step.type){
+            case TAKEOFF:
+                // Polls navdata for the flying state with every keep-alive
+                ardrone.takeoff();
+                keepAlive(now);
+                break;
+            case MOVE:
+            case HOVER:
+                pcmdTiming.restart();
+                sendPcmd(step, now);
+                break;
+            case ANIMATION:
+                // No PCMD until it is over, even a hover would interrupt it
+                ardrone.animate(step.animation);
+                keepAlive(now);
+                break;
+            case LAND:
+                ardrone.land();
+                nextStep(now);
+                break;
+        }
+    }
+
+    // Called on the wheel thread at nextDeadline
+    private void continueStep(){
+        Step step = mission.steps.get(stepIndex);
+        if (step.type == Step.Type.TAKEOFF){
+            Navdata navdata = ardrone.navdata;
+            if (navdata != null && navdata.isFlying()) nextStep(nextDeadline);
+            else if (nextDeadline >= stepEnd) abortTakeoff();
+            else keepAlive(nextDeadline);
+            return;
+        }
+        if (nextDeadline >= stepEnd){
+            nextStep(stepEnd);
+            return;
+        }
+
+        switch (step.type){
+            case MOVE:
+            case HOVER:
+                sendPcmd(step, nextDeadline);
+                break;
+            case ANIMATION:
+                keepAlive(nextDeadline);
+                break;
+            default:
+                nextStep(nextDeadline);
+        }
+    }
+
+    private void abortTakeoff(){
+        Log.w(TAG, "Mission " + mission.name + " aborted, the drone did not take off");
+        missions.clear();
+        mission = null;
+        ardrone.land(); // Do not let it take off later with nobody flying it
+        ardrone.setMissionControl(false);
+    }
+
+    private void keepAlive(long deadline){
+        ardrone.resetWatchdog();
+        schedule(Math.min(stepEnd, deadline + PCMD_PERIOD * 1000000L));
+    }
+
+    private void sendPcmd(Step step, long deadline){
+        long start = System.nanoTime();
+        ardrone.atPcmd(step.roll, step.pitch, step.verticalSpeed, step.yawSpeed);
+        pcmdTiming.record(start, System.nanoTime() - start);
+        schedule(Math.min(stepEnd, deadline + PCMD_PERIOD * 1000000L));
+    }
+
+    private void nextStep(long now){
+        stepIndex++;
+        startStep(now);
+    }
+
+    private void schedule(long deadline){
+        nextDeadline = deadline;
+        timeout = wheel.scheduleAt(new StepTimeout(++generation), deadline);
+    }
+}
@@ -16,6 +16,7 @@ package com.troche.glass.ardrone;
  * limitations under the License.
  */
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -23,6 +24,7 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -33,13 +35,13 @@ import java.nio.ByteOrder;
 public class Navdata {
     // Debugging
     private static final String TAG = "Navdata";
-    private static final boolean D = true;
 
     public boolean isReceivingData = false;
 
     private static final Integer NAVDATA_PORT = 5554;
     private static final short NAVDATA_MAX_SIZE = 4096;
     private static final int NAVDATA_HEADER = 0x55667788;
+    private static final short NAVDATA_CHECKSUM_TAG = (short) 0xFFFF;
 
     // Basic info
     public int state;
@@ -54,23 +56,61 @@ public class Navdata {
     public float roll;    // Roll in milli-degrees
     public float yaw;    // Yaw in milli-degrees
     public int altitude; // cm
-    public int velocityX;
-    public int velocityY;
-    public int velocityZ;
+    public float velocityX; // mm/s
+    public float velocityY; // mm/s
+    public float velocityZ; // mm/s
 
-    private final NavdataReaderThread navdataReaderThread;
+    // Demo navdata over time
+    public final NavdataHistory history = new NavdataHistory();
 
-    public Navdata(){
+    private final NavdataReaderThread navdataReaderThread;
+    private volatile NavdataRelay relay; // Null unless relaying to local subscribers
+    private final NavdataProfileManager profileManager;
+    private final ConfigCache configCache;
+    private final StartupTracker startupTracker;
+
+    public Navdata(NavdataProfileManager profileManager, ConfigCache configCache,
+                   StartupTracker startupTracker){
+        this.profileManager = profileManager;
+        this.configCache = configCache;
+        this.startupTracker = startupTracker;
         navdataReaderThread = new NavdataReaderThread();
         navdataReaderThread.start();
     }
 
     public synchronized void destroy(){
         navdataReaderThread.cancel();
+        if (relay != null) relay.destroy();
+    }
+
+    /**
+     * Turns on relay mode: every datagram received is re-published to the subscribers
+     * of the returned relay
+     */
+    public synchronized NavdataRelay startRelay(){
+        if (relay == null) relay = new NavdataRelay(NAVDATA_MAX_SIZE);
+        return relay;
+    }
+
+    /**
+     * Blocks until a navdata packet with a sequence other than lastSequence is parsed
+     * or the timeout expires
+     * @return true if new navdata arrived
+     */
+    public synchronized boolean waitForUpdate(int lastSequence, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (sequence == lastSequence && remaining > 0){
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return sequence != lastSequence;
     }
 
     private class NavdataReaderThread extends Thread {
-        private static final long SLEEP = 1000 * 10;
+        private static final int RECEIVE_TIMEOUT = 250; // ms
+        private static final long KEEPALIVE_PERIOD = 1000; // ms
         private boolean keepRunning;
         private DatagramSocket socket;
 
@@ -79,7 +119,7 @@ public class Navdata {
 
             try {
                 socket = new DatagramSocket();
-                socket.setSoTimeout(1);
+                socket.setSoTimeout(RECEIVE_TIMEOUT);
             } catch (SocketException e) {
                 Log.e(TAG, "Navdata socket was unable to be initialized.", e);
                 socket = null;
@@ -96,31 +136,53 @@ public class Navdata {
 
                 byte[] inBuf = new byte[NAVDATA_MAX_SIZE];
                 DatagramPacket inPacket = new DatagramPacket(inBuf, inBuf.length);
+                long lastKeepalive = 0;
 
                 while (keepRunning){
-                    try {
-                        socket.send(outPacket);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error when sending data to ARDrone NAVDATA port ", e);
-                        isReceivingData = false;
-                        sleep(SLEEP);
-                        continue;
+                    // The drone keeps streaming navdata as long as it is pinged periodically
+                    if (!isReceivingData || System.currentTimeMillis() - lastKeepalive > KEEPALIVE_PERIOD){
+                        try {
+                            socket.send(outPacket);
+                            lastKeepalive = System.currentTimeMillis();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Error when sending data to ARDrone NAVDATA port ", e);
+                            isReceivingData = false;
+                            // Short, the link may just be coming up and hold mode waits on navdata
+                            sleep(RECEIVE_TIMEOUT);
+                            continue;
+                        }
                     }
 
+                    // Receive straight into the relay slot when relaying, the buffer is reused otherwise
+                    NavdataRelay currentRelay = relay;
                     try{
-                        inBuf = new byte[NAVDATA_MAX_SIZE];
-                        inPacket = new DatagramPacket(inBuf, inBuf.length);
+                        inPacket.setData(currentRelay != null ? currentRelay.nextBuffer() : inBuf);
                         socket.receive(inPacket);
                     }
+                    catch (SocketTimeoutException e){
+                        isReceivingData = false;
+                        continue;
+                    }
                     catch (IOException e){
                         Log.e(TAG, "Error when receiving data from ARDrone NAVDATA port ", e);
                         isReceivingData = false;
                         continue;
                     }
 
-                    parseRawNavdata(inPacket.getData());
+                    if (currentRelay != null) currentRelay.publish(inPacket.getLength());
 
-                    sleep(SLEEP);
+                    long parseStart = System.nanoTime();
+                    parseRawNavdata(inPacket.getData(), inPacket.getLength());
+                    if (profileManager != null){
+                        profileManager.onPacketReceived(sequence, inPacket.getLength(),
+                                System.nanoTime() - parseStart);
+                    }
+                    if (profileManager != null && isInBootstrapMode()){
+                        profileManager.onBootstrap();
+                    }
+                    if (configCache != null){
+                        configCache.onAckState(isCommandAcknowledged());
+                    }
                 }
 
             } catch (InterruptedException e) {
@@ -136,9 +198,9 @@ public class Navdata {
         }
     }
 
-    private synchronized void parseRawNavdata(byte [] inBuf){
+    private synchronized void parseRawNavdata(byte [] inBuf, int length){
         try{
-            ByteBuffer rawNavdata = ByteBuffer.wrap(inBuf);
+            ByteBuffer rawNavdata = ByteBuffer.wrap(inBuf, 0, length);
             if (ByteOrder.LITTLE_ENDIAN != rawNavdata.order()) {
                 rawNavdata.order(ByteOrder.LITTLE_ENDIAN);
             }
@@ -147,11 +209,12 @@ public class Navdata {
                 Log.e(TAG, "Wrong navdata header. Ignoring the rest.");
                 return;
             }
+            if (!isReceivingData && startupTracker != null) startupTracker.recordFirstNavdata();
             isReceivingData = true;
 
             state = rawNavdata.getInt();
             sequence = rawNavdata.getInt();
-            if(D) Log.d(TAG, "Received navdata with seq: " + sequence);
+            EventLog.log(EventLog.Event.NAVDATA_RECEIVED, sequence, length);
             visionFlag = rawNavdata.getInt();
 
             short optionId, optionSize;
@@ -160,21 +223,24 @@ public class Navdata {
             do { // Loop through options
                 optionId = rawNavdata.getShort();
                 optionSize = rawNavdata.getShort();
-                if(D) Log.d(TAG, "Option ID: " + optionId + ", Size: " + optionSize);
-                if (optionSize <= 4) break;
+                EventLog.log(EventLog.Event.NAVDATA_OPTION, optionId, optionSize);
+                if (optionSize <= 4 || optionId == NAVDATA_CHECKSUM_TAG) break;
                 optionData = new byte[optionSize - 4];
                 rawNavdata.get(optionData);
-                if (optionId == 0){
+                if (optionId == Option.DEMO.ordinal()){
                     parseDemoNavdata(optionData);
                 }
 
-            } while (optionId != 0);
+            } while (rawNavdata.remaining() >= 4); // Options other than demo are skipped
 
 
         }
         catch (Exception e){
             Log.e(TAG, "Error when parsing navdata", e);
         }
+        finally {
+            notifyAll(); // Wake up threads waiting for navdata (e.g. FlightController)
+        }
     }
 
     private synchronized void parseDemoNavdata(byte[] optionData){
@@ -191,9 +257,12 @@ public class Navdata {
             roll = demoNavdata.getFloat();
             yaw = demoNavdata.getFloat();
             altitude = demoNavdata.getInt();
-            velocityX = demoNavdata.getInt();
-            velocityY = demoNavdata.getInt();
-            velocityZ = demoNavdata.getInt();
+            velocityX = demoNavdata.getFloat();
+            velocityY = demoNavdata.getFloat();
+            velocityZ = demoNavdata.getFloat();
+
+            history.append(SystemClock.elapsedRealtime(), batteryPercentage, altitude,
+                    pitch, roll, yaw, velocityX, velocityY, velocityZ);
         }
         catch (Exception e){
             Log.e(TAG, "Error when parsing optionData of navdata", e);
@@ -212,6 +281,17 @@ public class Navdata {
         return getStateFlag(StateFlag.VBAT_LOW) == 1;
     }
 
+    public boolean isCommandAcknowledged(){
+        return getStateFlag(StateFlag.COMMAND_CONTROL_ACK) == 1;
+    }
+
+    /**
+     * @return true while the drone only sends its state, waiting for general:navdata_demo
+     */
+    public boolean isInBootstrapMode(){
+        return getStateFlag(StateFlag.NAVDATA_BOOTSTRAP) == 1;
+    }
+
     public boolean isInEmergencyMode(){
         return getStateFlag(StateFlag.EMERGENCY) == 1;
     }
@@ -220,6 +300,43 @@ public class Navdata {
         return ( state >> flag.ordinal() ) & 1;
     }
 
+    // Navdata option tags, from ARDrone_SDK_2_0_1/ARDroneLib/Soft/Common/navdata_keys.h
+    public enum Option {
+        DEMO,
+        TIME,
+        RAW_MEASURES,
+        PHYS_MEASURES,
+        GYROS_OFFSETS,
+        EULER_ANGLES,
+        REFERENCES,
+        TRIMS,
+        RC_REFERENCES,
+        PWM,
+        ALTITUDE,
+        VISION_RAW,
+        VISION_OF,
+        VISION,
+        VISION_PERF,
+        TRACKERS_SEND,
+        VISION_DETECT,
+        WATCHDOG,
+        ADC_DATA_FRAME,
+        VIDEO_STREAM,
+        GAMES,
+        PRESSURE_RAW,
+        MAGNETO,
+        WIND_SPEED,
+        KALMAN_PRESSURE,
+        HDVIDEO_STREAM,
+        WIFI,
+        ZIMMU_3000;
+
+        // Bit of the option in general:navdata_options
+        public int mask(){
+            return 1 << ordinal();
+        }
+    }
+
     private enum StateFlag{
         FLY, /* FLY : (0) ardrone is landed, (1) ardrone is flying */
         VIDEO,  /* VIDEO : (0) video disable, (1) video enable */
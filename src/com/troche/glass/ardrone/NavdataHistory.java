@@ -0,0 +1,314 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Fixed-size history of the demo navdata, for graphs and rolling statistics.
+ *
+ * Samples are kept in primitive column arrays (one per field plus the timestamps) used as
+ * ring buffers, so appending is O(1), allocation free, and the memory used does not grow
+ * with the flight length. Besides the raw samples, the history keeps tiers downsampled to
+ * 1 s, 10 s and 60 s buckets (the mean of the samples in each bucket) that cover longer
+ * periods of time. Yaw wraps at +/-180 degrees, so its bucket mean is the circular mean.
+ */
+public class NavdataHistory {
+
+    public enum Field {
+        BATTERY(true),
+        ALTITUDE(true),
+        PITCH(false),
+        ROLL(false),
+        YAW(false),
+        VELOCITY_X(false),
+        VELOCITY_Y(false),
+        VELOCITY_Z(false);
+
+        final boolean isInt;
+
+        Field(boolean isInt){
+            this.isInt = isInt;
+        }
+    }
+
+    public enum Resolution {
+        RAW(0, 1024),              // ~68 s of demo navdata at 15 Hz
+        SECOND(1000, 600),         // 10 min
+        TEN_SECONDS(10000, 360),   // 1 h
+        MINUTE(60000, 240);        // 4 h
+
+        final long bucketMillis;
+        final int capacity;
+
+        Resolution(long bucketMillis, int capacity){
+            this.bucketMillis = bucketMillis;
+            this.capacity = capacity;
+        }
+    }
+
+    private static final Field[] FIELDS = Field.values();
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    private final Ring[] rings = new Ring[RESOLUTIONS.length];
+    private final Bucket[] buckets = new Bucket[RESOLUTIONS.length];
+
+    // Scratch values of the sample being appended, indexed by Field ordinal
+    private final double[] sample = new double[FIELDS.length];
+
+    public NavdataHistory(){
+        for (Resolution resolution : RESOLUTIONS){
+            rings[resolution.ordinal()] = new Ring(resolution.capacity);
+            if (resolution != Resolution.RAW){
+                buckets[resolution.ordinal()] = new Bucket(resolution.bucketMillis);
+            }
+        }
+    }
+
+    /**
+     * Appends a sample to the raw history and folds it into the downsampled tiers
+     */
+    public synchronized void append(long timeMillis, int battery, int altitude,
+                                    float pitch, float roll, float yaw,
+                                    float velocityX, float velocityY, float velocityZ){
+        sample[Field.BATTERY.ordinal()] = battery;
+        sample[Field.ALTITUDE.ordinal()] = altitude;
+        sample[Field.PITCH.ordinal()] = pitch;
+        sample[Field.ROLL.ordinal()] = roll;
+        sample[Field.YAW.ordinal()] = yaw;
+        sample[Field.VELOCITY_X.ordinal()] = velocityX;
+        sample[Field.VELOCITY_Y.ordinal()] = velocityY;
+        sample[Field.VELOCITY_Z.ordinal()] = velocityZ;
+
+        rings[Resolution.RAW.ordinal()].append(timeMillis, sample);
+
+        for (int i = 1; i < RESOLUTIONS.length; i++){
+            buckets[i].add(timeMillis, sample, rings[i]);
+        }
+    }
+
+    public synchronized void clear(){
+        for (int i = 0; i < RESOLUTIONS.length; i++){
+            rings[i].clear();
+            if (buckets[i] != null) buckets[i].clear();
+        }
+    }
+
+    /**
+     * @return the number of samples held at the given resolution
+     */
+    public synchronized int size(Resolution resolution){
+        return rings[resolution.ordinal()].size;
+    }
+
+    /**
+     * @param index 0 is the oldest sample held
+     */
+    public synchronized long getTime(Resolution resolution, int index){
+        Ring ring = rings[resolution.ordinal()];
+        return ring.times[ring.slot(index)];
+    }
+
+    /**
+     * @param index 0 is the oldest sample held
+     */
+    public synchronized double get(Field field, Resolution resolution, int index){
+        Ring ring = rings[resolution.ordinal()];
+        return ring.value(field, ring.slot(index));
+    }
+
+    /**
+     * The window queries below cover the samples no older than windowMillis before the
+     * newest sample at the given resolution. They return NaN when there are no samples.
+     */
+    public synchronized double min(Field field, Resolution resolution, long windowMillis){
+        Ring ring = rings[resolution.ordinal()];
+        double min = Double.NaN;
+        for (int i = ring.firstInWindow(windowMillis); i < ring.size; i++){
+            double value = ring.value(field, ring.slot(i));
+            if (!(value >= min)) min = value;
+        }
+        return min;
+    }
+
+    public synchronized double max(Field field, Resolution resolution, long windowMillis){
+        Ring ring = rings[resolution.ordinal()];
+        double max = Double.NaN;
+        for (int i = ring.firstInWindow(windowMillis); i < ring.size; i++){
+            double value = ring.value(field, ring.slot(i));
+            if (!(value <= max)) max = value;
+        }
+        return max;
+    }
+
+    public synchronized double mean(Field field, Resolution resolution, long windowMillis){
+        Ring ring = rings[resolution.ordinal()];
+        int first = ring.firstInWindow(windowMillis);
+        if (first == ring.size) return Double.NaN;
+
+        double sum = 0;
+        for (int i = first; i < ring.size; i++){
+            sum += ring.value(field, ring.slot(i));
+        }
+        return sum / (ring.size - first);
+    }
+
+    public synchronized double variance(Field field, Resolution resolution, long windowMillis){
+        Ring ring = rings[resolution.ordinal()];
+        int first = ring.firstInWindow(windowMillis);
+        if (first == ring.size) return Double.NaN;
+
+        double mean = mean(field, resolution, windowMillis);
+        double sum = 0;
+        for (int i = first; i < ring.size; i++){
+            double delta = ring.value(field, ring.slot(i)) - mean;
+            sum += delta * delta;
+        }
+        return sum / (ring.size - first);
+    }
+
+    /**
+     * Least squares trend of a field, in field units per second
+     * (e.g. the battery drain rate or the altitude trend)
+     */
+    public synchronized double slope(Field field, Resolution resolution, long windowMillis){
+        Ring ring = rings[resolution.ordinal()];
+        int first = ring.firstInWindow(windowMillis);
+        int n = ring.size - first;
+        if (n < 2) return Double.NaN;
+
+        long origin = ring.times[ring.slot(first)];
+        double sumT = 0, sumV = 0, sumTT = 0, sumTV = 0;
+        for (int i = first; i < ring.size; i++){
+            int slot = ring.slot(i);
+            double t = (ring.times[slot] - origin) / 1000.0;
+            double v = ring.value(field, slot);
+            sumT += t;
+            sumV += v;
+            sumTT += t * t;
+            sumTV += t * v;
+        }
+        double denominator = n * sumTT - sumT * sumT;
+        return denominator == 0 ? Double.NaN : (n * sumTV - sumT * sumV) / denominator;
+    }
+
+    /**
+     * @return the bytes used by the sample columns, which is fixed at construction
+     */
+    public static int getMemoryFootprint(){
+        int bytesPerSample = 8; // timestamp
+        for (Field field : FIELDS) bytesPerSample += 4;
+        int samples = 0;
+        for (Resolution resolution : RESOLUTIONS) samples += resolution.capacity;
+        return samples * bytesPerSample;
+    }
+
+    /**
+     * Ring buffer of samples stored column by column
+     */
+    private static class Ring {
+        final long[] times;
+        final int[][] intColumns = new int[FIELDS.length][];
+        final float[][] floatColumns = new float[FIELDS.length][];
+        int head = 0; // Next slot to write
+        int size = 0;
+
+        Ring(int capacity){
+            times = new long[capacity];
+            for (Field field : FIELDS){
+                if (field.isInt) intColumns[field.ordinal()] = new int[capacity];
+                else floatColumns[field.ordinal()] = new float[capacity];
+            }
+        }
+
+        void append(long time, double[] values){
+            times[head] = time;
+            for (Field field : FIELDS){
+                int f = field.ordinal();
+                if (field.isInt) intColumns[f][head] = (int) Math.round(values[f]);
+                else floatColumns[f][head] = (float) values[f];
+            }
+            head = (head + 1) % times.length;
+            if (size < times.length) size++;
+        }
+
+        void clear(){
+            head = size = 0;
+        }
+
+        // Maps a logical index (0 is the oldest sample) to its slot in the columns
+        int slot(int index){
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index: " + index);
+            return (head - size + index + times.length) % times.length;
+        }
+
+        double value(Field field, int slot){
+            int f = field.ordinal();
+            return field.isInt ? intColumns[f][slot] : floatColumns[f][slot];
+        }
+
+        // Logical index of the oldest sample within the window, size if there is none
+        int firstInWindow(long windowMillis){
+            if (size == 0) return 0;
+            long from = times[slot(size - 1)] - windowMillis;
+            int first = size;
+            while (first > 0 && times[slot(first - 1)] >= from) first--;
+            return first;
+        }
+    }
+
+    /**
+     * Accumulates the samples of the current bucket of a downsampled tier
+     */
+    private static class Bucket {
+        final long millis;
+        final double[] sums = new double[FIELDS.length];
+        double yawSin, yawCos; // Yaw is averaged as a unit vector, the YAW sum is unused
+        long start = -1;
+        int count = 0;
+
+        Bucket(long millis){
+            this.millis = millis;
+        }
+
+        void add(long time, double[] values, Ring ring){
+            if (start >= 0 && time >= start + millis){
+                flush(ring);
+            }
+            if (count == 0){
+                start = time - time % millis;
+            }
+            for (int f = 0; f < sums.length; f++) sums[f] += values[f];
+            double yaw = Math.toRadians(values[Field.YAW.ordinal()] / 1000); // milli-degrees
+            yawSin += Math.sin(yaw);
+            yawCos += Math.cos(yaw);
+            count++;
+        }
+
+        private void flush(Ring ring){
+            if (count > 0){
+                for (int f = 0; f < sums.length; f++) sums[f] /= count;
+                sums[Field.YAW.ordinal()] = Math.toDegrees(Math.atan2(yawSin, yawCos)) * 1000;
+                ring.append(start, sums);
+            }
+            clear();
+        }
+
+        void clear(){
+            for (int f = 0; f < sums.length; f++) sums[f] = 0;
+            yawSin = yawCos = 0;
+            start = -1;
+            count = 0;
+        }
+    }
+}
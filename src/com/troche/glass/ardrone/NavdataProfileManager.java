@@ -0,0 +1,205 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses the navdata the drone sends so that only what is consumed goes over the air.
+ *
+ * Consumers subscribe with the navdata options they read and whether they need the full
+ * rate (~200 Hz, navdata_demo FALSE) or the demo rate (~15 Hz). The drone is configured
+ * with the union of the options (general:navdata_options) and the highest rate requested.
+ * The full rate is dropped back to the demo rate for a while when the link loses too many
+ * packets or parsing takes too much CPU.
+ *
+ * The received bytes per second are measured so the savings can be checked.
+ */
+public class NavdataProfileManager {
+    // Debugging
+    private static final String TAG = "NavdataProfileManager";
+    private static final boolean D = false;
+
+    private static final long EVALUATE_PERIOD = 1000; // ms
+    private static final long BACKOFF_PERIOD = 10000; // ms at the demo rate after degrading
+    private static final float MAX_PACKET_LOSS = 0.1f; // Ratio of lost packets
+    private static final float MAX_PARSE_LOAD = 0.1f;  // Ratio of one CPU spent parsing
+
+    private final Ardrone ardrone;
+    private final Object applyLock = new Object();
+
+    private final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+    // Profile requested to the drone, null until the first one is applied
+    private Boolean appliedDemo;
+    private int appliedOptions;
+    private long backoffUntil = 0;
+
+    // Measurements of the current evaluation period
+    private long periodStart = 0;
+    private int periodBytes = 0;
+    private int periodPackets = 0;
+    private int periodLost = 0;
+    private long periodParseNanos = 0;
+    private int lastSequence = -1;
+
+    // Results of the last evaluation period
+    private long totalBytes = 0;
+    private int bytesPerSecond = 0;
+    private int packetsPerSecond = 0;
+    private float packetLoss = 0f;
+    private float parseLoad = 0f;
+
+    public NavdataProfileManager(Ardrone ardrone){
+        this.ardrone = ardrone;
+    }
+
+    /**
+     * Registers (or replaces) the navdata needs of a consumer
+     * @param name     identifies the consumer
+     * @param options  bitmask of Navdata.Option.mask() values read by the consumer
+     * @param fullRate true if the consumer needs navdata at the full rate
+     */
+    public void subscribe(String name, int options, boolean fullRate){
+        synchronized (this){
+            subscriptions.put(name, new Subscription(options, fullRate));
+        }
+        applyProfile();
+    }
+
+    public void unsubscribe(String name){
+        synchronized (this){
+            subscriptions.remove(name);
+        }
+        applyProfile();
+    }
+
+    /**
+     * Called by the navdata reader thread for every packet received
+     */
+    void onPacketReceived(int sequence, int bytes, long parseNanos){
+        boolean evaluate;
+        synchronized (this){
+            long now = System.currentTimeMillis();
+            if (periodStart == 0) periodStart = now;
+
+            if (lastSequence >= 0 && sequence > lastSequence + 1){
+                periodLost += sequence - lastSequence - 1;
+            }
+            lastSequence = sequence;
+            periodBytes += bytes;
+            periodPackets++;
+            periodParseNanos += parseNanos;
+            totalBytes += bytes;
+
+            evaluate = now - periodStart >= EVALUATE_PERIOD;
+            if (evaluate) endPeriod(now);
+        }
+        if (evaluate) applyProfile();
+    }
+
+    /**
+     * Called by the navdata reader thread while the drone is in navdata bootstrap mode:
+     * it only sends its state until navdata_demo is written, whatever its configuration
+     * says (a freshly booted drone reports navdata_demo TRUE), so the profile is sent again
+     * without asking the cache.
+     */
+    void onBootstrap(){
+        boolean demo;
+        int options;
+        synchronized (this){
+            if (appliedDemo == null) return;
+            demo = appliedDemo;
+            options = appliedOptions;
+        }
+        ardrone.forceConfig("general:navdata_demo", demo ? "TRUE" : "FALSE");
+        ardrone.forceConfig("general:navdata_options", String.valueOf(options));
+    }
+
+    public synchronized int getBytesPerSecond(){
+        return bytesPerSecond;
+    }
+
+    public synchronized long getTotalBytes(){
+        return totalBytes;
+    }
+
+    public synchronized String getReport(){
+        return String.format("Navdata %s, options 0x%08x: %d B/s, %d packets/s, loss %.1f%%, parse CPU %.2f%%",
+                appliedDemo == null ? "unset" : appliedDemo ? "demo" : "full", appliedOptions,
+                bytesPerSecond, packetsPerSecond, packetLoss * 100, parseLoad * 100);
+    }
+
+    private void endPeriod(long now){
+        float seconds = (now - periodStart) / 1000f;
+        bytesPerSecond = Math.round(periodBytes / seconds);
+        packetsPerSecond = Math.round(periodPackets / seconds);
+        packetLoss = (float) periodLost / (periodPackets + periodLost);
+        parseLoad = periodParseNanos / (seconds * 1e9f);
+
+        // Only the full rate can be degraded, the demo rate is the floor
+        if (Boolean.FALSE.equals(appliedDemo)
+                && (packetLoss > MAX_PACKET_LOSS || parseLoad > MAX_PARSE_LOAD)){
+            Log.w(TAG, "Link or CPU over budget, falling back to demo navdata. " + getReport());
+            backoffUntil = now + BACKOFF_PERIOD;
+        }
+        if(D) Log.d(TAG, getReport());
+
+        periodStart = now;
+        periodBytes = periodPackets = periodLost = 0;
+        periodParseNanos = 0;
+    }
+
+    /**
+     * Sends the navdata configuration if the wanted profile changed
+     */
+    private void applyProfile(){
+        synchronized (applyLock){
+            boolean demo, sendDemo, sendOptions;
+            int options;
+            synchronized (this){
+                boolean fullRate = false;
+                options = 0;
+                for (Subscription subscription : subscriptions.values()){
+                    options |= subscription.options;
+                    fullRate |= subscription.fullRate;
+                }
+                demo = !fullRate || System.currentTimeMillis() < backoffUntil;
+
+                sendDemo = appliedDemo == null || appliedDemo != demo;
+                sendOptions = appliedDemo == null || appliedOptions != options;
+                appliedDemo = demo;
+                appliedOptions = options;
+            }
+
+            if(D) Log.d(TAG, "Navdata profile demo=" + demo + " options=" + options);
+            if (sendDemo) ardrone.setConfig("general:navdata_demo", demo ? "TRUE" : "FALSE");
+            if (sendOptions) ardrone.setConfig("general:navdata_options", String.valueOf(options));
+        }
+    }
+
+    private static class Subscription {
+        final int options;
+        final boolean fullRate;
+
+        Subscription(int options, boolean fullRate){
+            this.options = options;
+            this.fullRate = fullRate;
+        }
+    }
+}
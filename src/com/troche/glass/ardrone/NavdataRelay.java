@@ -0,0 +1,219 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-publishes the navdata datagrams received from the drone to local subscribers
+ * (e.g. a ground station, a recorder), since only one reader can talk to the drone.
+ *
+ * The navdata reader receives straight into the slots of a ring of buffers and publishes
+ * them; each subscriber has its own delivery thread that hands it the slots, without
+ * copies. The reader never waits for the subscribers: a subscriber that gets within
+ * SKIP_MARGIN of the slot being written skips to the newest datagram. A slot can still be
+ * overwritten while a subscriber reads it, so subscribers check isStillValid() once they
+ * have read it (like a seqlock) and throw away what they read if not; the UDP forwarder
+ * copies the datagram first and only sends the copy if it is still valid. Skipped and
+ * overwritten datagrams are counted as dropped, for that subscriber only, a slow one does
+ * not hold back the others.
+ */
+public class NavdataRelay {
+    // Debugging
+    private static final String TAG = "NavdataRelay";
+
+    private static final int SLOTS = 64; // ~0.3 s of full rate navdata
+    private static final int SKIP_MARGIN = 8; // Slots left before the reader comes back to one
+    private static final long IDLE_PARK_NANOS = 100 * 1000000L;
+
+    public interface Subscriber {
+        /**
+         * Called on the subscriber's own thread for every datagram. The buffer is reused
+         * once the call returns, so copy anything that must be kept, and only trust what
+         * was read if isStillValid(index) is true afterwards.
+         */
+        void onNavdata(long index, byte[] buffer, int length);
+    }
+
+    private final byte[][] buffers = new byte[SLOTS][];
+    private final int[] lengths = new int[SLOTS];
+    private volatile long published = 0; // Datagrams published so far
+
+    // Replaced on every change, so publish() walks it without locking or allocating
+    private volatile SubscriberThread[] entries = new SubscriberThread[0];
+    private boolean destroyed = false;
+    private DatagramSocket forwardSocket;
+
+    public NavdataRelay(int bufferSize){
+        for (int i = 0; i < SLOTS; i++) buffers[i] = new byte[bufferSize];
+    }
+
+    public synchronized void destroy(){
+        destroyed = true;
+        for (SubscriberThread entry : entries) entry.cancel();
+        entries = new SubscriberThread[0];
+        if (forwardSocket != null) forwardSocket.close();
+    }
+
+    public synchronized void addSubscriber(String name, Subscriber subscriber){
+        if (destroyed) return;
+        SubscriberThread entry = new SubscriberThread(name, subscriber, published);
+        SubscriberThread[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+        newEntries[entries.length] = entry;
+        entries = newEntries;
+        entry.start();
+    }
+
+    /**
+     * Forwards the datagrams to a local UDP port
+     */
+    public void addUdpSubscriber(InetSocketAddress address) throws SocketException {
+        synchronized (this){
+            if (forwardSocket == null) forwardSocket = new DatagramSocket();
+        }
+        addSubscriber("udp " + address, new UdpForwarder(forwardSocket, address));
+    }
+
+    public synchronized void removeSubscriber(String name){
+        int kept = 0;
+        SubscriberThread[] newEntries = new SubscriberThread[entries.length];
+        for (SubscriberThread entry : entries){
+            if (entry.name.equals(name)) entry.cancel();
+            else newEntries[kept++] = entry;
+        }
+        entries = Arrays.copyOf(newEntries, kept);
+    }
+
+    /**
+     * @return the buffer the reader must receive the next datagram into
+     */
+    byte[] nextBuffer(){
+        return buffers[(int) (published % SLOTS)];
+    }
+
+    /**
+     * Publishes the datagram received into nextBuffer(). Called by the navdata reader only.
+     */
+    void publish(int length){
+        lengths[(int) (published % SLOTS)] = length;
+        published++;
+        for (SubscriberThread entry : entries) LockSupport.unpark(entry);
+    }
+
+    /**
+     * @return false if the reader may have started overwriting the datagram of this index,
+     * check it after reading the buffer
+     */
+    public boolean isStillValid(long index){
+        // The reader only receives into the slot once the datagram SLOTS - 1 later is published
+        return published - index < SLOTS;
+    }
+
+    /**
+     * Datagrams delivered and dropped by each subscriber
+     */
+    public String getReport(){
+        StringBuilder report = new StringBuilder("Navdata relay, published: " + published);
+        for (SubscriberThread entry : entries){
+            report.append(", ").append(entry.name).append(": ")
+                    .append(entry.delivered).append(" delivered/").append(entry.dropped).append(" dropped");
+        }
+        return report.toString();
+    }
+
+    /**
+     * Delivery thread of one subscriber
+     */
+    private class SubscriberThread extends Thread {
+        final String name;
+        final Subscriber subscriber;
+        private long cursor; // Next datagram to deliver
+        private volatile boolean keepRunning = true;
+        volatile long delivered = 0;
+        volatile long dropped = 0;
+
+        SubscriberThread(String name, Subscriber subscriber, long cursor){
+            super(TAG + " " + name);
+            this.name = name;
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+        }
+
+        public void run(){
+            while (keepRunning){
+                if (cursor == published) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                else deliverNext();
+            }
+        }
+
+        void cancel(){
+            keepRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        private void deliverNext(){
+            // Close to a ring behind, the reader is about to write into the slot: skip to
+            // the newest datagram, which has the most time left before it is reused
+            long end = published;
+            if (cursor < end - (SLOTS - SKIP_MARGIN)){
+                dropped += end - 1 - cursor;
+                cursor = end - 1;
+            }
+
+            int slot = (int) (cursor % SLOTS);
+            try {
+                subscriber.onNavdata(cursor, buffers[slot], lengths[slot]);
+                // Overwritten while it was being read if the reader got back to the slot
+                if (isStillValid(cursor)) delivered++;
+                else dropped++;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Navdata subscriber " + name + " failed", e);
+                dropped++;
+            }
+            cursor++;
+        }
+    }
+
+    private class UdpForwarder implements Subscriber {
+        private final DatagramSocket socket;
+        private final DatagramPacket packet;
+        private final byte[] copy = new byte[buffers[0].length];
+
+        UdpForwarder(DatagramSocket socket, InetSocketAddress address) throws SocketException {
+            this.socket = socket;
+            this.packet = new DatagramPacket(copy, 0, address);
+        }
+
+        public void onNavdata(long index, byte[] buffer, int length){
+            // Sending takes longer than copying, and a torn copy is never sent
+            System.arraycopy(buffer, 0, copy, 0, length);
+            if (!isStillValid(index)) return;
+            packet.setData(copy, 0, length);
+            try {
+                socket.send(packet);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
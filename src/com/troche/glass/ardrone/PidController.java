@@ -0,0 +1,61 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Proportional-Integral-Derivative loop with a clamped output and anti-windup.
+ * The derivative term is taken from the measured rate of change of the error
+ * (e.g. the drone velocity) instead of differentiating a noisy error signal.
+ */
+public class PidController {
+    private final float kp;
+    private final float ki;
+    private final float kd;
+    private final float maxOutput;
+
+    private float integral = 0f;
+
+    public PidController(float kp, float ki, float kd, float maxOutput){
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+        this.maxOutput = maxOutput;
+    }
+
+    /**
+     * @param error     target minus measured value
+     * @param errorRate rate of change of the error, in error units per second
+     * @param dt        time since the previous update, in seconds
+     * @return the control output, clamped to [-maxOutput, maxOutput]
+     */
+    public float update(float error, float errorRate, float dt){
+        float output = kp * error + ki * (integral + error * dt) + kd * errorRate;
+
+        // Only integrate while not saturated, so the integral does not wind up
+        if (Math.abs(output) < maxOutput){
+            integral += error * dt;
+        }
+
+        return clamp(output);
+    }
+
+    public void reset(){
+        integral = 0f;
+    }
+
+    private float clamp(float value){
+        return Math.max(-maxOutput, Math.min(maxOutput, value));
+    }
+}
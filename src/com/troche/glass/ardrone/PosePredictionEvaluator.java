@@ -0,0 +1,187 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Offline scoring of the PosePredictor on recorded sensor traces.
+ *
+ * For every sample, the pose predicted one horizon ahead is compared with the pose
+ * actually recorded at that time (interpolated), and so is the unpredicted pose, which
+ * is what the drone gets without prediction. Reports the RMS errors of both.
+ *
+ * Usage: PosePredictionEvaluator [trace.csv [horizon_ms ...]]
+ * Without a trace, a synthetic head movement is scored.
+ */
+public class PosePredictionEvaluator {
+    private static final int MAX_SAMPLES = 1 << 20;
+    private static final int[] DEFAULT_HORIZONS = {30, 60, 100, 150};
+
+    public static class Score {
+        public final float horizon;
+        public final double rollError, predictedRollError;
+        public final double pitchError, predictedPitchError;
+        public final double yawSpeedError, predictedYawSpeedError;
+
+        Score(float horizon, double[] errors){
+            this.horizon = horizon;
+            rollError = errors[0];
+            predictedRollError = errors[1];
+            pitchError = errors[2];
+            predictedPitchError = errors[3];
+            yawSpeedError = errors[4];
+            predictedYawSpeedError = errors[5];
+        }
+
+        public String toString(){
+            return String.format("horizon %3.0f ms | RMS error without/with prediction: " +
+                    "roll %.3f/%.3f deg, pitch %.3f/%.3f deg, yaw speed %.4f/%.4f rad/s",
+                    horizon * 1000, rollError, predictedRollError, pitchError, predictedPitchError,
+                    yawSpeedError, predictedYawSpeedError);
+        }
+    }
+
+    public static Score evaluate(SensorTrace trace, float horizon){
+        int n = trace.size();
+        long horizonNanos = (long) (horizon * 1e9);
+
+        // Split the trace per sensor, for the interpolation of the actual values
+        long[][] times = new long[2][n];
+        float[][] as = new float[2][n];
+        float[][] bs = new float[2][n];
+        int[] counts = new int[2];
+        for (int i = 0; i < n; i++){
+            int sensor = trace.getSensor(i);
+            int k = counts[sensor]++;
+            times[sensor][k] = trace.getTime(i);
+            as[sensor][k] = trace.getA(i);
+            bs[sensor][k] = trace.getB(i);
+        }
+
+        PosePredictor predictor = new PosePredictor();
+        predictor.setEnabled(true);
+        predictor.setExtraLatency(horizon);
+
+        // Squared error sums: roll, predicted roll, pitch, predicted pitch, yaw speed, predicted
+        double[] sums = new double[6];
+        int[] samples = new int[2];
+        boolean hasRotation = false, hasGyroscope = false;
+        for (int i = 0; i < n; i++){
+            long time = trace.getTime(i);
+            if (trace.getSensor(i) == SensorTrace.ROTATION){
+                predictor.onOrientation(time, trace.getA(i), trace.getB(i));
+                hasRotation = true;
+            }
+            else {
+                predictor.onGyroscope(time, trace.getA(i), trace.getB(i));
+                hasGyroscope = true;
+            }
+            if (!hasRotation || !hasGyroscope) continue;
+
+            long target = time + horizonNanos;
+            int r = SensorTrace.ROTATION, g = SensorTrace.GYROSCOPE;
+            if (trace.getSensor(i) == r && target <= times[r][counts[r] - 1]){
+                float roll = interpolate(times[r], as[r], counts[r], target);
+                float pitch = interpolate(times[r], bs[r], counts[r], target);
+                sums[0] += square(trace.getA(i) - roll);
+                sums[1] += square(predictor.getRoll() - roll);
+                sums[2] += square(trace.getB(i) - pitch);
+                sums[3] += square(predictor.getPitch() - pitch);
+                samples[r]++;
+            }
+            else if (trace.getSensor(i) == g && target <= times[g][counts[g] - 1]){
+                float yawSpeed = interpolate(times[g], bs[g], counts[g], target);
+                sums[4] += square(trace.getB(i) - yawSpeed);
+                sums[5] += square(predictor.getYawSpeed() - yawSpeed);
+                samples[g]++;
+            }
+        }
+
+        double[] errors = new double[6];
+        for (int k = 0; k < 6; k++){
+            int count = samples[k < 4 ? SensorTrace.ROTATION : SensorTrace.GYROSCOPE];
+            errors[k] = count == 0 ? Double.NaN : Math.sqrt(sums[k] / count);
+        }
+        return new Score(horizon, errors);
+    }
+
+    private static float interpolate(long[] times, float[] values, int count, long time){
+        int i = Arrays.binarySearch(times, 0, count, time);
+        if (i >= 0) return values[i];
+        i = -i - 1; // First sample after time
+        if (i == 0) return values[0];
+        if (i == count) return values[count - 1];
+        float t = (float) (time - times[i - 1]) / (times[i] - times[i - 1]);
+        return values[i - 1] + t * (values[i] - values[i - 1]);
+    }
+
+    private static double square(double value){
+        return value * value;
+    }
+
+    /**
+     * Head turning and nodding at a few tenths of Hz, sampled at 60 Hz with sensor noise
+     */
+    static SensorTrace syntheticTrace(float seconds){
+        Random random = new Random(42);
+        SensorTrace trace = new SensorTrace(MAX_SAMPLES);
+        long period = 1000000000L / 60;
+        for (long time = 0; time < seconds * 1e9; time += period){
+            double t = time / 1e9;
+            double pitch = 20 * Math.sin(2 * Math.PI * 0.3 * t) + 8 * Math.sin(2 * Math.PI * 0.7 * t + 1);
+            double pitchSpeed = Math.toRadians(20 * 2 * Math.PI * 0.3 * Math.cos(2 * Math.PI * 0.3 * t)
+                    + 8 * 2 * Math.PI * 0.7 * Math.cos(2 * Math.PI * 0.7 * t + 1));
+            double roll = 15 * Math.sin(2 * Math.PI * 0.2 * t + 2);
+            double yawSpeed = 1.2 * Math.sin(2 * Math.PI * 0.25 * t);
+
+            trace.record(time, SensorTrace.ROTATION,
+                    (float) (roll + 0.3 * random.nextGaussian()), (float) (pitch + 0.3 * random.nextGaussian()));
+            trace.record(time + period / 2, SensorTrace.GYROSCOPE,
+                    (float) (pitchSpeed + 0.02 * random.nextGaussian()), (float) (yawSpeed + 0.02 * random.nextGaussian()));
+        }
+        return trace;
+    }
+
+    public static void main(String[] args) throws IOException {
+        SensorTrace trace;
+        if (args.length > 0){
+            FileReader reader = new FileReader(args[0]);
+            try {
+                trace = SensorTrace.readCsv(reader, MAX_SAMPLES);
+            } finally {
+                reader.close();
+            }
+        }
+        else {
+            System.out.println("No trace given, scoring a synthetic head movement");
+            trace = syntheticTrace(120);
+        }
+
+        int[] horizons = DEFAULT_HORIZONS;
+        if (args.length > 1){
+            horizons = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) horizons[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println(trace.size() + " samples");
+        for (int horizon : horizons){
+            System.out.println(evaluate(trace, horizon / 1000f));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Extrapolates the head pose forward in time to compensate the lag between a head
+ * movement and the drone reaction (sensor filtering, command dispatch and the Wi-Fi hop).
+ *
+ * Pitch is extrapolated with the gyroscope pitch speed, roll with its rate of change
+ * and the yaw speed with its own rate of change. The horizon is the command latency
+ * measured on the device plus a tunable extra latency for what cannot be measured,
+ * times a tunable scale.
+ *
+ * Plain Java, so the PosePredictionEvaluator can run it offline.
+ */
+public class PosePredictor {
+    private static final float RATE_SMOOTHING = 0.3f; // Weight of the newest rate sample
+    private static final float LATENCY_SMOOTHING = 0.05f; // Weight of the newest latency sample
+    private static final float MAX_HORIZON = 0.3f; // s
+    private static final float MAX_DT = 0.2f; // s, longer gaps restart the rate estimates
+
+    private volatile boolean enabled = false;
+    private volatile float extraLatency = 0.03f; // s
+    private volatile float horizonScale = 1f;
+    private volatile float measuredLatency = 0f; // s
+
+    // Latest inputs and rate estimates
+    private float roll, pitch, pitchSpeed, yawSpeed;
+    private float rollRate, yawAcceleration;
+    private long lastOrientationTime = 0;
+    private long lastGyroscopeTime = 0;
+
+    public void setEnabled(boolean enabled){
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * @param seconds latency not measured on the device (sensor filtering, Wi-Fi, drone)
+     */
+    public void setExtraLatency(float seconds){
+        extraLatency = seconds;
+    }
+
+    public void setHorizonScale(float scale){
+        horizonScale = scale;
+    }
+
+    /**
+     * Feeds the measured time between issuing a command and it leaving the device
+     */
+    public synchronized void onCommandLatency(long nanos){
+        measuredLatency += LATENCY_SMOOTHING * (nanos / 1e9f - measuredLatency);
+    }
+
+    public float getMeasuredLatency(){
+        return measuredLatency;
+    }
+
+    /**
+     * @return how far ahead the pose is predicted, in seconds
+     */
+    public float getHorizon(){
+        return Math.max(0f, Math.min(MAX_HORIZON, (measuredLatency + extraLatency) * horizonScale));
+    }
+
+    /**
+     * @param timeNanos time of the sample
+     * @param roll      in degrees
+     * @param pitch     in degrees
+     */
+    public synchronized void onOrientation(long timeNanos, float roll, float pitch){
+        float dt = (timeNanos - lastOrientationTime) / 1e9f;
+        if (lastOrientationTime != 0 && dt > 0 && dt < MAX_DT){
+            rollRate += RATE_SMOOTHING * ((roll - this.roll) / dt - rollRate);
+        }
+        else {
+            rollRate = 0f;
+        }
+        lastOrientationTime = timeNanos;
+        this.roll = roll;
+        this.pitch = pitch;
+    }
+
+    /**
+     * @param timeNanos  time of the sample
+     * @param pitchSpeed in radians per second
+     * @param yawSpeed   in radians per second
+     */
+    public synchronized void onGyroscope(long timeNanos, float pitchSpeed, float yawSpeed){
+        float dt = (timeNanos - lastGyroscopeTime) / 1e9f;
+        if (lastGyroscopeTime != 0 && dt > 0 && dt < MAX_DT){
+            yawAcceleration += RATE_SMOOTHING * ((yawSpeed - this.yawSpeed) / dt - yawAcceleration);
+        }
+        else {
+            yawAcceleration = 0f;
+        }
+        lastGyroscopeTime = timeNanos;
+        this.pitchSpeed = pitchSpeed;
+        this.yawSpeed = yawSpeed;
+    }
+
+    /**
+     * Forgets the gyroscope, for when it stops delivering samples
+     */
+    public synchronized void clearGyroscope(){
+        lastGyroscopeTime = 0;
+        pitchSpeed = 0f;
+        yawSpeed = 0f;
+        yawAcceleration = 0f;
+    }
+
+    public synchronized float getRoll(){
+        return enabled ? roll + rollRate * getHorizon() : roll;
+    }
+
+    public synchronized float getPitch(){
+        return enabled ? pitch + (float) Math.toDegrees(pitchSpeed) * getHorizon() : pitch;
+    }
+
+    public synchronized float getYawSpeed(){
+        return enabled ? yawSpeed + yawAcceleration * getHorizon() : yawSpeed;
+    }
+}
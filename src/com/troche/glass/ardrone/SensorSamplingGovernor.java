@@ -0,0 +1,224 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Registers the head tracking sensors at the lowest rate the flight needs.
+ *
+ * While landed every PCMD is a hover, so the rotation sensor only feeds the display and
+ * the gyroscope is off. Flying with a steady head held in the hover pose (inside the
+ * Ardrone dead zones) both run at a low rate; a still head that is tilted still commands
+ * motion, so it keeps the full rate. Takeoff or head
+ * motion ramps them straight back to full rate, and they only slow down again after the
+ * head has been still for a while, so a single glance does not make them flap.
+ *
+ * Keeps the time, process CPU time and sensor events spent in each mode. Must be used
+ * from the thread the sensor events are delivered on (the UI thread).
+ */
+public class SensorSamplingGovernor {
+    private static final int OFF = -1;
+
+    public enum Mode {
+        LANDED(SensorManager.SENSOR_DELAY_NORMAL, OFF),
+        STEADY(SensorManager.SENSOR_DELAY_NORMAL, SensorManager.SENSOR_DELAY_NORMAL),
+        ACTIVE(SensorManager.SENSOR_DELAY_UI, SensorManager.SENSOR_DELAY_UI);
+
+        private final int rotationDelay;
+        private final int gyroscopeDelay;
+
+        Mode(int rotationDelay, int gyroscopeDelay){
+            this.rotationDelay = rotationDelay;
+            this.gyroscopeDelay = gyroscopeDelay;
+        }
+
+        public boolean usesGyroscope(){
+            return gyroscopeDelay != OFF;
+        }
+    }
+
+    public interface Listener {
+        void onSamplingModeChanged(Mode mode);
+    }
+
+    private static final float MOTION_SPEED = 20f; // deg/s of head rotation counted as motion
+    private static final float MOTION_GYROSCOPE_SPEED = 0.35f; // rad/s, about the same
+    private static final float MOTION_DRIFT = 5f; // deg away from the still pose counted as motion
+    private static final long STEADY_DELAY = 2000000000L; // ns without motion before slowing down
+
+    private final SensorManager sensorManager;
+    private final SensorEventListener sensorListener;
+    private final Listener listener;
+    private Sensor rotation;
+    private Sensor gyroscope;
+    private boolean started = false;
+    private Mode mode = Mode.ACTIVE;
+
+    // Motion detection
+    private boolean flying = false;
+    private long lastMotionTime = 0;
+    private long lastOrientationTime = 0;
+    private float lastRoll, lastPitch;
+    private float lastYawSpeed;
+    private float stillRoll, stillPitch;
+
+    // Per mode statistics, indexed by Mode ordinal
+    private final long[] modeMillis = new long[Mode.values().length];
+    private final long[] modeCpuMillis = new long[Mode.values().length];
+    private final long[] modeEvents = new long[Mode.values().length];
+    private long modeStartTime;
+    private long modeStartCpuTime;
+
+    public SensorSamplingGovernor(SensorManager sensorManager, SensorEventListener sensorListener,
+                                  Listener listener){
+        this.sensorManager = sensorManager;
+        this.sensorListener = sensorListener;
+        this.listener = listener;
+    }
+
+    /**
+     * Registers the sensors, at full rate until the first orientation tells otherwise
+     */
+    public void start(Sensor rotation, Sensor gyroscope){
+        if (started) return;
+        this.rotation = rotation;
+        this.gyroscope = gyroscope;
+        started = true;
+        mode = Mode.ACTIVE;
+        lastOrientationTime = 0;
+        modeStartTime = SystemClock.elapsedRealtime();
+        modeStartCpuTime = Process.getElapsedCpuTime();
+        sensorManager.registerListener(sensorListener, rotation, mode.rotationDelay);
+        sensorManager.registerListener(sensorListener, gyroscope, mode.gyroscopeDelay);
+    }
+
+    public void stop(){
+        if (!started) return;
+        started = false;
+        sensorManager.unregisterListener(sensorListener);
+        accountMode();
+    }
+
+    public boolean isStarted(){
+        return started;
+    }
+
+    public Mode getMode(){
+        return mode;
+    }
+
+    /**
+     * @param timeNanos time of the sample
+     * @param roll      in degrees
+     * @param pitch     in degrees
+     * @param flying    whether the drone is flying or taking off
+     */
+    public void onOrientation(long timeNanos, float roll, float pitch, boolean flying){
+        modeEvents[mode.ordinal()]++;
+
+        if (flying && !this.flying) onMotion(timeNanos, roll, pitch); // Takeoff
+        this.flying = flying;
+
+        float dt = (timeNanos - lastOrientationTime) / 1e9f;
+        if (lastOrientationTime != 0 && dt > 0){
+            float speed = Math.max(Math.abs(roll - lastRoll), Math.abs(pitch - lastPitch)) / dt;
+            if (speed > MOTION_SPEED) onMotion(timeNanos, roll, pitch);
+        }
+        if (Math.abs(roll - stillRoll) > MOTION_DRIFT || Math.abs(pitch - stillPitch) > MOTION_DRIFT){
+            onMotion(timeNanos, roll, pitch);
+        }
+        lastOrientationTime = timeNanos;
+        lastRoll = roll;
+        lastPitch = pitch;
+
+        if (!flying) setMode(Mode.LANDED);
+        else if (timeNanos - lastMotionTime < STEADY_DELAY) setMode(Mode.ACTIVE);
+        else if (!Ardrone.isHoverPose(roll, pitch, lastYawSpeed)) setMode(Mode.ACTIVE);
+        else setMode(Mode.STEADY);
+    }
+
+    /**
+     * @param timeNanos  time of the sample
+     * @param pitchSpeed in radians per second
+     * @param yawSpeed   in radians per second
+     */
+    public void onGyroscope(long timeNanos, float pitchSpeed, float yawSpeed){
+        modeEvents[mode.ordinal()]++;
+        lastYawSpeed = yawSpeed;
+        if (Math.abs(pitchSpeed) > MOTION_GYROSCOPE_SPEED || Math.abs(yawSpeed) > MOTION_GYROSCOPE_SPEED){
+            onMotion(timeNanos, lastRoll, lastPitch);
+            if (flying) setMode(Mode.ACTIVE);
+        }
+    }
+
+    private void onMotion(long timeNanos, float roll, float pitch){
+        lastMotionTime = timeNanos;
+        stillRoll = roll;
+        stillPitch = pitch;
+    }
+
+    private void setMode(Mode newMode){
+        if (newMode == mode || !started) return;
+        accountMode();
+
+        // Re-registering is the only way to change the rate of a sensor
+        if (newMode.rotationDelay != mode.rotationDelay){
+            sensorManager.unregisterListener(sensorListener, rotation);
+            sensorManager.registerListener(sensorListener, rotation, newMode.rotationDelay);
+        }
+        if (newMode.gyroscopeDelay != mode.gyroscopeDelay){
+            sensorManager.unregisterListener(sensorListener, gyroscope);
+            if (newMode.usesGyroscope()){
+                sensorManager.registerListener(sensorListener, gyroscope, newMode.gyroscopeDelay);
+            }
+        }
+
+        mode = newMode;
+        if (!mode.usesGyroscope()) lastYawSpeed = 0f;
+        EventLog.log(EventLog.Event.SAMPLING_MODE, mode.ordinal());
+        listener.onSamplingModeChanged(mode);
+    }
+
+    // Adds the time and CPU since the current mode started to its totals
+    private void accountMode(){
+        long now = SystemClock.elapsedRealtime();
+        long cpuTime = Process.getElapsedCpuTime();
+        modeMillis[mode.ordinal()] += now - modeStartTime;
+        modeCpuMillis[mode.ordinal()] += cpuTime - modeStartCpuTime;
+        modeStartTime = now;
+        modeStartCpuTime = cpuTime;
+    }
+
+    /**
+     * Time, process CPU load and sensor events per second spent in each mode
+     */
+    public String getReport(){
+        if (started) accountMode();
+        StringBuilder report = new StringBuilder("Sensor sampling");
+        for (Mode m : Mode.values()){
+            int i = m.ordinal();
+            float seconds = modeMillis[i] / 1000f;
+            report.append(String.format(", %s: %.1f s, CPU %.1f%%, %.1f events/s", m.name(), seconds,
+                    modeMillis[i] > 0 ? 100f * modeCpuMillis[i] / modeMillis[i] : 0f,
+                    seconds > 0 ? modeEvents[i] / seconds : 0f));
+        }
+        return report.toString();
+    }
+}
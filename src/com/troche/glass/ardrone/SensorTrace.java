@@ -0,0 +1,120 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Fixed-size recording of the head pose samples fed to the PosePredictor, saved as CSV
+ * ("time_ns,sensor,a,b") for the PosePredictionEvaluator. Rotation samples hold roll and
+ * pitch in degrees, gyroscope samples the pitch and yaw speeds in radians per second.
+ * Once full, the oldest samples are overwritten.
+ */
+public class SensorTrace {
+    public static final int ROTATION = 0;
+    public static final int GYROSCOPE = 1;
+    private static final String[] SENSOR_NAMES = {"rotation", "gyroscope"};
+
+    private final long[] times;
+    private final byte[] sensors;
+    private final float[] a;
+    private final float[] b;
+    private int head = 0;
+    private int size = 0;
+
+    public SensorTrace(int capacity){
+        times = new long[capacity];
+        sensors = new byte[capacity];
+        a = new float[capacity];
+        b = new float[capacity];
+    }
+
+    public synchronized void record(long timeNanos, int sensor, float a, float b){
+        times[head] = timeNanos;
+        sensors[head] = (byte) sensor;
+        this.a[head] = a;
+        this.b[head] = b;
+        head = (head + 1) % times.length;
+        if (size < times.length) size++;
+    }
+
+    /**
+     * @return a snapshot of the samples recorded so far, e.g. to save it on another thread
+     */
+    public synchronized SensorTrace copy(){
+        SensorTrace copy = new SensorTrace(times.length);
+        System.arraycopy(times, 0, copy.times, 0, times.length);
+        System.arraycopy(sensors, 0, copy.sensors, 0, sensors.length);
+        System.arraycopy(a, 0, copy.a, 0, a.length);
+        System.arraycopy(b, 0, copy.b, 0, b.length);
+        copy.head = head;
+        copy.size = size;
+        return copy;
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public synchronized long getTime(int index){
+        return times[slot(index)];
+    }
+
+    public synchronized int getSensor(int index){
+        return sensors[slot(index)];
+    }
+
+    public synchronized float getA(int index){
+        return a[slot(index)];
+    }
+
+    public synchronized float getB(int index){
+        return b[slot(index)];
+    }
+
+    // index 0 is the oldest sample
+    private int slot(int index){
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index: " + index);
+        return (head - size + index + times.length) % times.length;
+    }
+
+    public synchronized void writeCsv(Writer writer){
+        PrintWriter out = new PrintWriter(writer);
+        out.println("time_ns,sensor,a,b");
+        for (int i = 0; i < size; i++){
+            int slot = slot(i);
+            out.println(times[slot] + "," + SENSOR_NAMES[sensors[slot]] + "," + a[slot] + "," + b[slot]);
+        }
+        out.flush();
+    }
+
+    public static SensorTrace readCsv(Reader reader, int capacity) throws IOException {
+        SensorTrace trace = new SensorTrace(capacity);
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null){
+            String[] fields = line.split(",");
+            if (fields.length != 4 || fields[0].startsWith("time")) continue;
+            int sensor = fields[1].trim().equals(SENSOR_NAMES[GYROSCOPE]) ? GYROSCOPE : ROTATION;
+            trace.record(Long.parseLong(fields[0].trim()), sensor,
+                    Float.parseFloat(fields[2]), Float.parseFloat(fields[3]));
+        }
+        return trace;
+    }
+}
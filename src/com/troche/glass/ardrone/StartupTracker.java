@@ -0,0 +1,119 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks which startup stages are ready and how long the cold start took.
+ *
+ * Times are measured from the creation of the tracker, which should be the first thing
+ * the activity does. Once both the first PCMD has been sent and the first navdata has
+ * been received, the startup report is logged.
+ */
+public class StartupTracker {
+    // Debugging
+    private static final String TAG = "StartupTracker";
+
+    public enum Stage {
+        NETWORK,  // Drone address resolved, commands can be sent
+        NAVDATA,  // Navdata reader started
+        SENSORS,  // Glass sensors looked up
+        SPEECH    // Text to speech engine initialized
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that completed the stage
+         */
+        void onStageReady(Stage stage);
+    }
+
+    private static final long NOT_YET = -1;
+
+    private final long startTime = SystemClock.elapsedRealtime();
+    private final long[] stageReadyTime = new long[Stage.values().length];
+    private long firstPcmdTime = NOT_YET;
+    private long firstNavdataTime = NOT_YET;
+
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    public StartupTracker(){
+        for (int i = 0; i < stageReadyTime.length; i++) stageReadyTime[i] = NOT_YET;
+    }
+
+    public synchronized void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    public synchronized boolean isReady(Stage stage){
+        return stageReadyTime[stage.ordinal()] != NOT_YET;
+    }
+
+    public void markReady(Stage stage){
+        List<Listener> toNotify;
+        synchronized (this){
+            if (isReady(stage)) return;
+            stageReadyTime[stage.ordinal()] = elapsed();
+            toNotify = new ArrayList<Listener>(listeners);
+        }
+        for (Listener listener : toNotify) listener.onStageReady(stage);
+    }
+
+    public void recordFirstPcmd(){
+        synchronized (this){
+            if (firstPcmdTime != NOT_YET) return;
+            firstPcmdTime = elapsed();
+        }
+        logReportIfComplete();
+    }
+
+    public void recordFirstNavdata(){
+        synchronized (this){
+            if (firstNavdataTime != NOT_YET) return;
+            firstNavdataTime = elapsed();
+        }
+        logReportIfComplete();
+    }
+
+    public synchronized String getReport(){
+        StringBuilder report = new StringBuilder("Startup (ms)");
+        for (Stage stage : Stage.values()){
+            report.append(", ").append(stage).append(": ").append(format(stageReadyTime[stage.ordinal()]));
+        }
+        report.append(", first PCMD: ").append(format(firstPcmdTime));
+        report.append(", first navdata: ").append(format(firstNavdataTime));
+        return report.toString();
+    }
+
+    private void logReportIfComplete(){
+        synchronized (this){
+            if (firstPcmdTime == NOT_YET || firstNavdataTime == NOT_YET) return;
+        }
+        Log.i(TAG, getReport());
+    }
+
+    private long elapsed(){
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+
+    private static String format(long time){
+        return time == NOT_YET ? "-" : String.valueOf(time);
+    }
+}
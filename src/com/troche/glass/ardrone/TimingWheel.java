@@ -0,0 +1,207 @@
+package com.troche.glass.ardrone;
+
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.util.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs any number of timed tasks on a single thread with millisecond precision.
+ *
+ * Hashed timing wheel: a task due at tick t goes into slot t % SLOTS, so scheduling and
+ * expiring are O(1) however many tasks are pending; tasks more than a turn away just
+ * stay in their slot until their tick comes. Other threads hand new tasks over through
+ * a lock-free queue, only the wheel thread touches the slots. The thread sleeps until the
+ * earliest deadline (or the next schedule), it does not wake up on the empty ticks.
+ *
+ * Tasks run on the wheel thread and must be short, a slow task delays all the others.
+ */
+public class TimingWheel {
+    // Debugging
+    private static final String TAG = "TimingWheel";
+
+    public static final long TICK_NANOS = 1000000L; // 1 ms
+    private static final int SLOTS = 512; // Power of two, a bit more than half a second per turn
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long deadlineTick;
+        private Timeout next;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadlineNanos){
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * The task will not run, unless it already started
+         */
+        public void cancel(){
+            cancelled = true;
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Timeout[] slots = new Timeout[SLOTS]; // Singly linked lists
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final WheelThread wheelThread = new WheelThread();
+    private int size = 0; // Timeouts in the slots
+
+    // Lateness of the tasks run, against their deadlines
+    private long runCount = 0;
+    private long latenessSum = 0;
+    private long latenessMax = 0;
+
+    public TimingWheel(){
+        wheelThread.start();
+    }
+
+    public void destroy(){
+        wheelThread.cancel();
+    }
+
+    /**
+     * Runs the task once, delayMillis from now
+     */
+    public Timeout schedule(Runnable task, long delayMillis){
+        return scheduleAt(task, System.nanoTime() + delayMillis * 1000000L);
+    }
+
+    /**
+     * Runs the task once at the given System.nanoTime(). Periodic tasks should reschedule
+     * themselves at their previous deadline plus the period, so lateness does not add up.
+     */
+    public Timeout scheduleAt(Runnable task, long deadlineNanos){
+        Timeout timeout = new Timeout(task, deadlineNanos);
+        pending.add(timeout);
+        LockSupport.unpark(wheelThread);
+        return timeout;
+    }
+
+    public synchronized String getReport(){
+        return String.format("Timing wheel, tasks run: %d, lateness avg/max: %.3f/%.3f ms",
+                runCount, runCount == 0 ? 0 : latenessSum / 1e6 / runCount, latenessMax / 1e6);
+    }
+
+    private synchronized void recordLateness(long lateness){
+        runCount++;
+        latenessSum += lateness;
+        latenessMax = Math.max(latenessMax, lateness);
+    }
+
+    private long tickOf(long nanos){
+        return (nanos - startNanos + TICK_NANOS - 1) / TICK_NANOS;
+    }
+
+    private class WheelThread extends Thread {
+        private volatile boolean keepRunning = true;
+        private long tick = 0; // Last tick processed
+
+        public WheelThread(){
+            super(TAG);
+        }
+
+        public void run(){
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+
+            while (keepRunning){
+                long nowTick = (System.nanoTime() - startNanos) / TICK_NANOS;
+                transferPending();
+
+                // Catch up with the ticks missed, a full turn covers every slot
+                for (long t = tick + 1; t <= nowTick && t <= tick + SLOTS; t++){
+                    expire((int) (t & (SLOTS - 1)), nowTick);
+                }
+                tick = Math.max(tick, nowTick);
+
+                if (!pending.isEmpty()) continue;
+                if (size == 0){
+                    LockSupport.park(this);
+                }
+                else {
+                    long untilDeadline = startNanos + nextDeadlineTick() * TICK_NANOS - System.nanoTime();
+                    if (untilDeadline > 0) LockSupport.parkNanos(this, untilDeadline);
+                }
+            }
+        }
+
+        public void cancel(){
+            keepRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * @return the earliest tick a timeout is due at. Looks a turn ahead slot by slot,
+         * only the timeouts due in later turns need a scan of all of them.
+         */
+        private long nextDeadlineTick(){
+            long earliest = Long.MAX_VALUE;
+            for (long t = tick + 1; t <= tick + SLOTS; t++){
+                for (Timeout timeout = slots[(int) (t & (SLOTS - 1))]; timeout != null; timeout = timeout.next){
+                    if (timeout.deadlineTick == t) return t;
+                    earliest = Math.min(earliest, timeout.deadlineTick);
+                }
+            }
+            return earliest;
+        }
+
+        private void transferPending(){
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null){
+                if (timeout.cancelled) continue;
+                // Anything already due runs with the next tick processed
+                timeout.deadlineTick = Math.max(tickOf(timeout.deadlineNanos), tick + 1);
+                int slot = (int) (timeout.deadlineTick & (SLOTS - 1));
+                timeout.next = slots[slot];
+                slots[slot] = timeout;
+                size++;
+            }
+        }
+
+        private void expire(int slot, long nowTick){
+            Timeout previous = null;
+            Timeout timeout = slots[slot];
+            while (timeout != null){
+                Timeout next = timeout.next;
+                boolean due = timeout.deadlineTick <= nowTick;
+                if (due || timeout.cancelled){
+                    if (previous == null) slots[slot] = next;
+                    else previous.next = next;
+                    timeout.next = null;
+                    size--;
+                    if (!timeout.cancelled) run(timeout);
+                }
+                else {
+                    previous = timeout;
+                }
+                timeout = next;
+            }
+        }
+
+        private void run(Timeout timeout){
+            recordLateness(Math.max(0, System.nanoTime() - timeout.deadlineNanos));
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Timed task failed", e);
+            }
+        }
+    }
+}
@@ -30,12 +30,18 @@ import java.net.InetAddress;
  * InetAddress inetAddress - target inetAddress
  * Integer port - target UDP port
  * String message - the payload of the packet
+ * Long enqueueTime - optional, System.nanoTime() when the packet was queued
+ * OnSentListener listener - optional, told how long the packet waited before leaving
  */
 public class UdpPacketSenderTask extends AsyncTask<Object, Void, Void> {
     // Debugging
     private static final String TAG = "UdpPacketSenderTask";
     private static final boolean D = false;
 
+    public interface OnSentListener {
+        void onSent(long latencyNanos);
+    }
+
     @Override
     protected Void doInBackground(Object... params) {
         InetAddress inetAddress = (InetAddress) params[0];
@@ -52,6 +58,9 @@ public class UdpPacketSenderTask extends AsyncTask<Object, Void, Void> {
             packet = new DatagramPacket(
                     messageBytes, messageBytes.length, inetAddress, port);
             socket.send(packet);
+            if (params.length > 4 && params[4] != null){
+                ((OnSentListener) params[4]).onSent(System.nanoTime() - (Long) params[3]);
+            }
             if(D) Log.e(TAG, "On port "+port+" sent "+message);
         } catch (IOException e) {
             if(D) Log.e(TAG, "Failed sending UDP packet", e);